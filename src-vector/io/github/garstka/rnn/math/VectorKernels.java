@@ -0,0 +1,436 @@
+package io.github.garstka.rnn.math;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+// Kernels written with the JDK Vector API (jdk.incubator.vector).
+//
+// Kept in a separate source root, since it needs JDK 16+ and
+// --add-modules jdk.incubator.vector both to compile and to run. Matrix loads
+// it by name, and falls back to ScalarKernels if it can't.
+final class VectorKernels implements Kernels
+{
+	private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+
+	// Floats with as many lanes as S, for float storage
+	private static final VectorSpecies<Float> F = VectorSpecies.of(
+	    float.class, VectorShape.forBitSize(S.vectorBitSize() / 2));
+
+	private static final Kernels scalar = ScalarKernels.instance;
+
+	VectorKernels()
+	{
+	}
+
+	/* Level 1 */
+
+	public double dot(double[] x, int xo, double[] y, int yo, int n)
+	{
+		DoubleVector acc = DoubleVector.zero(S);
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+			acc = DoubleVector.fromArray(S, x, xo + i)
+			          .fma(DoubleVector.fromArray(S, y, yo + i), acc);
+
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < n; i++)
+			sum += x[xo + i] * y[yo + i];
+		return sum;
+	}
+
+	public double max(int n, double[] y, int yo)
+	{
+		double max = y[yo];
+		int i = 0;
+		int bound = S.loopBound(n);
+		if (bound > 0)
+		{
+			DoubleVector acc = DoubleVector.fromArray(S, y, yo);
+			for (i = S.length(); i < bound; i += S.length())
+				acc = acc.max(DoubleVector.fromArray(S, y, yo + i));
+			max = acc.reduceLanes(VectorOperators.MAX);
+		}
+
+		for (; i < n; i++)
+			if (y[yo + i] > max)
+				max = y[yo + i];
+		return max;
+	}
+
+	public double expSum(
+	    int n, double shift, double[] x, int xo, double[] y, int yo)
+	{
+		DoubleVector acc = DoubleVector.zero(S);
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+		{
+			DoubleVector e = DoubleVector.fromArray(S, x, xo + i)
+			                     .sub(shift)
+			                     .lanewise(VectorOperators.EXP);
+			e.intoArray(y, yo + i);
+			acc = acc.add(e);
+		}
+
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < n; i++)
+		{
+			double e = java.lang.Math.exp(x[xo + i] - shift);
+			y[yo + i] = e;
+			sum += e;
+		}
+		return sum;
+	}
+
+	public void axpy(int n, double alpha, double[] x, int xo, double[] y, int yo)
+	{
+		DoubleVector av = DoubleVector.broadcast(S, alpha);
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+			DoubleVector.fromArray(S, x, xo + i)
+			    .fma(av, DoubleVector.fromArray(S, y, yo + i))
+			    .intoArray(y, yo + i);
+
+		for (; i < n; i++)
+			y[yo + i] += alpha * x[xo + i];
+	}
+
+	public void add(int n, double[] x, int xo, double[] y, int yo)
+	{
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+			DoubleVector.fromArray(S, y, yo + i)
+			    .add(DoubleVector.fromArray(S, x, xo + i))
+			    .intoArray(y, yo + i);
+
+		for (; i < n; i++)
+			y[yo + i] += x[xo + i];
+	}
+
+	public void mul(int n, double[] x, int xo, double[] y, int yo)
+	{
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+			DoubleVector.fromArray(S, y, yo + i)
+			    .mul(DoubleVector.fromArray(S, x, xo + i))
+			    .intoArray(y, yo + i);
+
+		for (; i < n; i++)
+			y[yo + i] *= x[xo + i];
+	}
+
+	public void scale(int n, double alpha, double[] y, int yo)
+	{
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+			DoubleVector.fromArray(S, y, yo + i)
+			    .mul(alpha)
+			    .intoArray(y, yo + i);
+
+		for (; i < n; i++)
+			y[yo + i] *= alpha;
+	}
+
+	public void exp(int n, double[] y, int yo)
+	{
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+			DoubleVector.fromArray(S, y, yo + i)
+			    .lanewise(VectorOperators.EXP)
+			    .intoArray(y, yo + i);
+
+		for (; i < n; i++)
+			y[yo + i] = java.lang.Math.exp(y[yo + i]);
+	}
+
+	public void tanh(int n, double[] y, int yo)
+	{
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+			DoubleVector.fromArray(S, y, yo + i)
+			    .lanewise(VectorOperators.TANH)
+			    .intoArray(y, yo + i);
+
+		for (; i < n; i++)
+			y[yo + i] = java.lang.Math.tanh(y[yo + i]);
+	}
+
+	public void addTanh(int n, double[] x, int xo, double[] y, int yo)
+	{
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+			DoubleVector.fromArray(S, y, yo + i)
+			    .add(DoubleVector.fromArray(S, x, xo + i))
+			    .lanewise(VectorOperators.TANH)
+			    .intoArray(y, yo + i);
+
+		for (; i < n; i++)
+			y[yo + i] = java.lang.Math.tanh(y[yo + i] + x[xo + i]);
+	}
+
+	public void tanhGrad(int n, double[] h, int ho, double[] g, int go,
+	    double[] z, int zo)
+	{
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+		{
+			DoubleVector hv = DoubleVector.fromArray(S, h, ho + i);
+			hv.mul(hv)
+			    .neg()
+			    .add(1.0)
+			    .mul(DoubleVector.fromArray(S, g, go + i))
+			    .intoArray(z, zo + i);
+		}
+
+		for (; i < n; i++)
+		{
+			double hi = h[ho + i];
+			z[zo + i] = (1.0 - hi * hi) * g[go + i];
+		}
+	}
+
+	/* Level 2 */
+
+	// Four rows share each load of x.
+	public void gemv(int M, int K, double[] a, int ao, int ars, double[] x,
+	    int xo, int xs, double[] y, int yo, int ys)
+	{
+		if (xs != 1)
+		{
+			scalar.gemv(M, K, a, ao, ars, x, xo, xs, y, yo, ys);
+			return;
+		}
+
+		int bound = S.loopBound(K);
+		int i = 0;
+		for (; i + 3 < M; i += 4)
+		{
+			int a0 = ao + i * ars, a1 = a0 + ars, a2 = a1 + ars,
+			    a3 = a2 + ars;
+			DoubleVector s0 = DoubleVector.zero(S), s1 = s0, s2 = s0, s3 = s0;
+			int k = 0;
+			for (; k < bound; k += S.length())
+			{
+				DoubleVector xv = DoubleVector.fromArray(S, x, xo + k);
+				s0 = DoubleVector.fromArray(S, a, a0 + k).fma(xv, s0);
+				s1 = DoubleVector.fromArray(S, a, a1 + k).fma(xv, s1);
+				s2 = DoubleVector.fromArray(S, a, a2 + k).fma(xv, s2);
+				s3 = DoubleVector.fromArray(S, a, a3 + k).fma(xv, s3);
+			}
+
+			double r0 = s0.reduceLanes(VectorOperators.ADD);
+			double r1 = s1.reduceLanes(VectorOperators.ADD);
+			double r2 = s2.reduceLanes(VectorOperators.ADD);
+			double r3 = s3.reduceLanes(VectorOperators.ADD);
+			for (; k < K; k++)
+			{
+				double xv = x[xo + k];
+				r0 += a[a0 + k] * xv;
+				r1 += a[a1 + k] * xv;
+				r2 += a[a2 + k] * xv;
+				r3 += a[a3 + k] * xv;
+			}
+
+			y[yo + i * ys] = r0;
+			y[yo + (i + 1) * ys] = r1;
+			y[yo + (i + 2) * ys] = r2;
+			y[yo + (i + 3) * ys] = r3;
+		}
+		for (; i < M; i++)
+			y[yo + i * ys] = dot(a, ao + i * ars, x, xo, K);
+	}
+
+	// Four rows of A are folded into y per pass.
+	public void gemvT(int M, int N, double[] a, int ao, int ars, double[] x,
+	    int xo, int xs, double[] y, int yo, int ys)
+	{
+		if (ys != 1)
+		{
+			scalar.gemvT(M, N, a, ao, ars, x, xo, xs, y, yo, ys);
+			return;
+		}
+
+		Arrays.fill(y, yo, yo + N, 0.0);
+
+		int bound = S.loopBound(N);
+		int i = 0;
+		for (; i + 3 < M; i += 4)
+		{
+			int a0 = ao + i * ars, a1 = a0 + ars, a2 = a1 + ars,
+			    a3 = a2 + ars;
+			double x0 = x[xo + i * xs], x1 = x[xo + (i + 1) * xs],
+			       x2 = x[xo + (i + 2) * xs], x3 = x[xo + (i + 3) * xs];
+			DoubleVector x0v = DoubleVector.broadcast(S, x0),
+			             x1v = DoubleVector.broadcast(S, x1),
+			             x2v = DoubleVector.broadcast(S, x2),
+			             x3v = DoubleVector.broadcast(S, x3);
+			int j = 0;
+			for (; j < bound; j += S.length())
+				DoubleVector.fromArray(S, a, a0 + j)
+				    .fma(x0v, DoubleVector.fromArray(S, y, yo + j))
+				    .add(DoubleVector.fromArray(S, a, a1 + j).mul(x1v))
+				    .add(DoubleVector.fromArray(S, a, a2 + j).mul(x2v))
+				    .add(DoubleVector.fromArray(S, a, a3 + j).mul(x3v))
+				    .intoArray(y, yo + j);
+			for (; j < N; j++)
+				y[yo + j] += a[a0 + j] * x0 + a[a1 + j] * x1 + a[a2 + j] * x2
+				    + a[a3 + j] * x3;
+		}
+		for (; i < M; i++)
+			axpy(N, x[xo + i * xs], a, ao + i * ars, y, yo);
+	}
+
+	/* Mixed precision */
+
+	public void add(int n, float[] x, int xo, double[] y, int yo)
+	{
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+			DoubleVector.fromArray(S, y, yo + i)
+			    .add(widen(x, xo + i))
+			    .intoArray(y, yo + i);
+
+		for (; i < n; i++)
+			y[yo + i] += x[xo + i];
+	}
+
+	public void add(int n, double[] x, int xo, float[] y, int yo)
+	{
+		int i = 0;
+		for (int bound = S.loopBound(n); i < bound; i += S.length())
+			narrow(widen(y, yo + i).add(DoubleVector.fromArray(S, x, xo + i)))
+			    .intoArray(y, yo + i);
+
+		for (; i < n; i++)
+			y[yo + i] = (float)(y[yo + i] + x[xo + i]);
+	}
+
+	public void gemv(int M, int K, float[] a, int ao, int ars, double[] x,
+	    int xo, int xs, double[] y, int yo, int ys)
+	{
+		if (xs != 1)
+		{
+			scalar.gemv(M, K, a, ao, ars, x, xo, xs, y, yo, ys);
+			return;
+		}
+
+		int bound = S.loopBound(K);
+		int i = 0;
+		for (; i + 3 < M; i += 4)
+		{
+			int a0 = ao + i * ars, a1 = a0 + ars, a2 = a1 + ars,
+			    a3 = a2 + ars;
+			DoubleVector s0 = DoubleVector.zero(S), s1 = s0, s2 = s0, s3 = s0;
+			int k = 0;
+			for (; k < bound; k += S.length())
+			{
+				DoubleVector xv = DoubleVector.fromArray(S, x, xo + k);
+				s0 = widen(a, a0 + k).fma(xv, s0);
+				s1 = widen(a, a1 + k).fma(xv, s1);
+				s2 = widen(a, a2 + k).fma(xv, s2);
+				s3 = widen(a, a3 + k).fma(xv, s3);
+			}
+
+			double r0 = s0.reduceLanes(VectorOperators.ADD);
+			double r1 = s1.reduceLanes(VectorOperators.ADD);
+			double r2 = s2.reduceLanes(VectorOperators.ADD);
+			double r3 = s3.reduceLanes(VectorOperators.ADD);
+			for (; k < K; k++)
+			{
+				double xv = x[xo + k];
+				r0 += a[a0 + k] * xv;
+				r1 += a[a1 + k] * xv;
+				r2 += a[a2 + k] * xv;
+				r3 += a[a3 + k] * xv;
+			}
+
+			y[yo + i * ys] = r0;
+			y[yo + (i + 1) * ys] = r1;
+			y[yo + (i + 2) * ys] = r2;
+			y[yo + (i + 3) * ys] = r3;
+		}
+		for (; i < M; i++)
+		{
+			int ai = ao + i * ars;
+			DoubleVector acc = DoubleVector.zero(S);
+			int k = 0;
+			for (; k < bound; k += S.length())
+				acc = widen(a, ai + k)
+				          .fma(DoubleVector.fromArray(S, x, xo + k), acc);
+
+			double sum = acc.reduceLanes(VectorOperators.ADD);
+			for (; k < K; k++)
+				sum += a[ai + k] * x[xo + k];
+			y[yo + i * ys] = sum;
+		}
+	}
+
+	public void gemvT(int M, int N, float[] a, int ao, int ars, double[] x,
+	    int xo, int xs, double[] y, int yo, int ys)
+	{
+		if (ys != 1)
+		{
+			scalar.gemvT(M, N, a, ao, ars, x, xo, xs, y, yo, ys);
+			return;
+		}
+
+		Arrays.fill(y, yo, yo + N, 0.0);
+
+		int bound = S.loopBound(N);
+		int i = 0;
+		for (; i + 3 < M; i += 4)
+		{
+			int a0 = ao + i * ars, a1 = a0 + ars, a2 = a1 + ars,
+			    a3 = a2 + ars;
+			double x0 = x[xo + i * xs], x1 = x[xo + (i + 1) * xs],
+			       x2 = x[xo + (i + 2) * xs], x3 = x[xo + (i + 3) * xs];
+			DoubleVector x0v = DoubleVector.broadcast(S, x0),
+			             x1v = DoubleVector.broadcast(S, x1),
+			             x2v = DoubleVector.broadcast(S, x2),
+			             x3v = DoubleVector.broadcast(S, x3);
+			int j = 0;
+			for (; j < bound; j += S.length())
+				widen(a, a0 + j)
+				    .fma(x0v, DoubleVector.fromArray(S, y, yo + j))
+				    .add(widen(a, a1 + j).mul(x1v))
+				    .add(widen(a, a2 + j).mul(x2v))
+				    .add(widen(a, a3 + j).mul(x3v))
+				    .intoArray(y, yo + j);
+			for (; j < N; j++)
+				y[yo + j] += a[a0 + j] * x0 + a[a1 + j] * x1 + a[a2 + j] * x2
+				    + a[a3 + j] * x3;
+		}
+		for (; i < M; i++)
+		{
+			int ai = ao + i * ars;
+			double xi = x[xo + i * xs];
+			DoubleVector xv = DoubleVector.broadcast(S, xi);
+			int j = 0;
+			for (; j < bound; j += S.length())
+				widen(a, ai + j)
+				    .fma(xv, DoubleVector.fromArray(S, y, yo + j))
+				    .intoArray(y, yo + j);
+			for (; j < N; j++)
+				y[yo + j] += a[ai + j] * xi;
+		}
+	}
+
+	/* Helpers */
+
+	// Loads S.length() floats from a at i as doubles.
+	private static DoubleVector widen(float[] a, int i)
+	{
+		return (DoubleVector)FloatVector.fromArray(F, a, i)
+		    .convertShape(VectorOperators.F2D, S, 0);
+	}
+
+	// Rounds v to floats.
+	private static FloatVector narrow(DoubleVector v)
+	{
+		return (FloatVector)v.convertShape(VectorOperators.D2F, F, 0);
+	}
+}
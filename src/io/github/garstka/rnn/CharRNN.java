@@ -1,9 +1,12 @@
 package io.github.garstka.rnn;
 
+import io.github.garstka.rnn.math.Matrix;
 import io.github.garstka.rnn.net.*;
 import io.github.garstka.rnn.net.exceptions.BadTrainingSetException;
 import io.github.garstka.rnn.net.exceptions.CharacterNotInAlphabetException;
 import io.github.garstka.rnn.net.exceptions.NoMoreTrainingDataException;
+import io.github.garstka.rnn.net.interfaces.CharacterSampleable;
+import io.github.garstka.rnn.net.interfaces.Trainer;
 
 import java.io.*;
 import java.util.Scanner;
@@ -37,6 +40,13 @@ public class CharRNN
 		if (options.getPrintOptions()) // Print options
 			options.print();
 
+		if (options.getUseVectorKernels() && !Matrix.setVectorKernels(true))
+			System.out.println(
+			    "Vector API kernels not available, using scalar kernels.");
+
+		Matrix.setParallelism(
+		    options.getThreads(), options.getParallelThreshold());
+
 		Scanner scanner = new Scanner(System.in);
 		while (true)
 		{
@@ -46,11 +56,13 @@ public class CharRNN
 			System.out.println("2. Restore a snapshot and continue training.");
 			System.out.println(
 			    "3. Restore a snapshot and sample (generate text).");
+			System.out.println("4. Restore a snapshot and prune it.");
 			System.out.println("(anything else to quit)");
 
 			final int optionCreate = 1;
 			final int optionContinue = 2;
 			final int optionSample = 3;
+			final int optionPrune = 4;
 
 			try
 			{
@@ -65,7 +77,8 @@ public class CharRNN
 					net = initialize(options);
 				}
 				else if (nextChar == optionContinue
-				    || nextChar == optionSample) // From snapshot
+				    || nextChar == optionSample
+				    || nextChar == optionPrune) // From snapshot
 				{
 					System.out.println(".snapshot file name: ");
 					networkName = scanner.nextLine();
@@ -87,8 +100,20 @@ public class CharRNN
 				if (nextChar == optionCreate
 				    || nextChar == optionContinue) // train
 					train(options, net, networkName);
+				else if (nextChar == optionPrune) // prune
+				{
+					net.prune(options.getPruneSparsity());
+					saveASnapshot(networkName + "-pruned", net);
+					System.out.println("Restore it to fine-tune (the pruned "
+					    + "weights stay zero), or to sample.");
+				}
 				else // sample
 				{
+					net.setSparseInference(options.getSparseSampling());
+					CharacterSampleable sampler = options.getQuantizedSampling()
+					    ? net.quantize()
+					    : net;
+
 					double temp = options.getSamplingTemp();
 					while (true)
 					{
@@ -106,7 +131,7 @@ public class CharRNN
 							continue;
 						}
 
-						sample(characters, seed, temp, net);
+						sample(characters, seed, temp, sampler);
 					}
 				}
 			}
@@ -125,7 +150,11 @@ public class CharRNN
 			// legacy network, single layer only
 			SingleLayerCharLevelRNN net = new SingleLayerCharLevelRNN();
 			net.setHiddenSize(options.getHiddenSize());
+			net.setRecurrentRank(options.getRecurrentRank());
+			net.setOutputRank(options.getOutputRank());
 			net.setLearningRate(options.getLearningRate());
+			net.setPrecision(options.getPrecision());
+			net.setOptimizer(options.getOptimizer().create());
 			return net;
 		}
 		else // Multi layer network.
@@ -138,7 +167,15 @@ public class CharRNN
 			for (int i = 0; i < hidden.length; i++)
 				hidden[i] = hiddenSize;
 			net.setHiddenSize(hidden);
+			net.setRecurrentRank(options.getRecurrentRank());
+			net.setOutputRank(options.getOutputRank());
 			net.setLearningRate(options.getLearningRate());
+			net.setPrecision(options.getPrecision());
+			net.setOptimizer(options.getOptimizer().create());
+			net.setPipelined(options.getPipelineLayers());
+			net.setOverlapUpdates(options.getOverlapUpdates());
+			net.setConcatenatedWeights(options.getConcatenateWeights());
+			net.setCheckpointSteps(options.getCheckpointSteps());
 			return net;
 		}
 	}
@@ -172,9 +209,25 @@ public class CharRNN
 			if (!net.isInitialized()) // Only if not restored from a snapshot.
 				net.initialize(trainingSet.getAlphabet());
 
-			RNNTrainer trainer = new RNNTrainer();
-			trainer.setSequenceLength(options.getSequenceLength());
-			trainer.initialize(net, trainingSet);
+			Trainer trainer;
+			if (options.getSynchronousTraining())
+			{
+				DataParallelTrainer t = new DataParallelTrainer();
+				t.setThreads(options.getTrainingThreads());
+				t.setSequenceLength(options.getSequenceLength());
+				t.setBatchSize(options.getBatchSize());
+				t.initialize(net, trainingSet);
+				trainer = t;
+			}
+			else
+			{
+				HogwildTrainer t = new HogwildTrainer();
+				t.setThreads(options.getTrainingThreads());
+				t.setSequenceLength(options.getSequenceLength());
+				t.setBatchSize(options.getBatchSize());
+				t.initialize(net, trainingSet);
+				trainer = t;
+			}
 			trainer.printDebug(true);
 
 			// For sampling during training, pick the temperature from options
@@ -300,7 +353,7 @@ public class CharRNN
 	     - temperature in (0.0,1.0]
 	 */
 	private static void sample(
-	    int n, String seed, double temperature, CharLevelRNN net)
+	    int n, String seed, double temperature, CharacterSampleable net)
 	{
 		if (n < 1)
 			throw new IllegalArgumentException("n must be at least 1");
@@ -311,7 +364,7 @@ public class CharRNN
 		if (seed == null)
 			throw new NullPointerException("Seed can't be null.");
 
-		if (!net.isInitialized())
+		if (net instanceof CharLevelRNN && !((CharLevelRNN)net).isInitialized())
 			throw new IllegalArgumentException("Network must be initialized.");
 
 		try
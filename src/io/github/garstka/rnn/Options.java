@@ -3,6 +3,8 @@ package io.github.garstka.rnn;
 import java.io.*;
 import java.util.Properties;
 import io.github.garstka.rnn.math.Math;
+import io.github.garstka.rnn.math.Precision;
+import io.github.garstka.rnn.net.OptimizerType;
 
 // Application options.
 public class Options
@@ -15,14 +17,29 @@ public class Options
 	private int layers; // How many layers in a net?
 	static final int layersDefault = 2;
 
+	private Precision precision; // Weight storage: double or float.
+	static final Precision precisionDefault = Precision.DOUBLE;
+
+	private int recurrentRank; // Rank of the factored Whh, 0 for full.
+	static final int recurrentRankDefault = 0;
+
+	private int outputRank; // Rank of the factored Why, 0 for full.
+	static final int outputRankDefault = 0;
+
 	/*** Training parameters ***/
 
 	private int sequenceLength; // How many steps to unroll during training?
 	static final int sequenceLengthDefault = 50;
 
+	private int batchSize; // How many sequences to train on in each step?
+	static final int batchSizeDefault = 1;
+
 	private double learningRate; // The network learning rate.
 	static final double learningRateDefault = 0.1;
 
+	private OptimizerType optimizer; // adagrad, rmsprop, adam or momentum.
+	static final OptimizerType optimizerDefault = OptimizerType.ADAGRAD;
+
 	/*** Sampling parameters ***/
 
 	// Sampling temperature (0.0, 1.0]. Lower
@@ -31,6 +48,17 @@ public class Options
 	private double samplingTemp;
 	static final double samplingTempDefault = 1.0;
 
+	private boolean sparseSampling; // Sample with sparse weight matrices.
+	static final boolean sparseSamplingDefault = false;
+
+	private boolean quantizedSampling; // Sample with int8 weights.
+	static final boolean quantizedSamplingDefault = false;
+
+	/*** Pruning parameters ***/
+
+	private double pruneSparsity; // Fraction of weights to zero, [0, 1).
+	static final double pruneSparsityDefault = 0.9;
+
 	/*** Other options ***/
 
 	private boolean printOptions; // Print options at the start.
@@ -57,6 +85,36 @@ public class Options
 	private boolean useSingleLayerNet; // Use the simple, single layer net.
 	static final boolean useSingleLayerNetDefault = false;
 
+	/*** Performance ***/
+
+	private boolean useVectorKernels; // Use the JDK Vector API, if present.
+	static final boolean useVectorKernelsDefault = false;
+
+	private int threads; // Threads for large matrix operations.
+	static final int threadsDefault = 1;
+
+	private int parallelThreshold; // Minimum work to split between threads.
+	static final int parallelThresholdDefault = 65536;
+
+	private int trainingThreads; // Threads training the net at once.
+	static final int trainingThreadsDefault = 1;
+
+	private boolean synchronousTraining; // Apply one averaged update per
+	                                     // step from all training threads.
+	static final boolean synchronousTrainingDefault = false;
+
+	private boolean pipelineLayers; // Run each layer on its own thread.
+	static final boolean pipelineLayersDefault = false;
+
+	private boolean overlapUpdates; // Update the weights on another thread.
+	static final boolean overlapUpdatesDefault = false;
+
+	private boolean concatenateWeights; // Keep [Wxh | Whh] as one matrix.
+	static final boolean concatenateWeightsDefault = false;
+
+	private int checkpointSteps; // Steps between kept hidden states, or 0.
+	static final int checkpointStepsDefault = 0;
+
 
 	/*** Load ***/
 
@@ -122,21 +180,61 @@ public class Options
 		return layers;
 	}
 
+	int getRecurrentRank()
+	{
+		return recurrentRank;
+	}
+
+	int getOutputRank()
+	{
+		return outputRank;
+	}
+
+	Precision getPrecision()
+	{
+		return precision;
+	}
+
 	int getSequenceLength()
 	{
 		return sequenceLength;
 	}
 
+	int getBatchSize()
+	{
+		return batchSize;
+	}
+
 	double getLearningRate()
 	{
 		return learningRate;
 	}
 
+	OptimizerType getOptimizer()
+	{
+		return optimizer;
+	}
+
 	double getSamplingTemp()
 	{
 		return samplingTemp;
 	}
 
+	boolean getSparseSampling()
+	{
+		return sparseSampling;
+	}
+
+	boolean getQuantizedSampling()
+	{
+		return quantizedSampling;
+	}
+
+	double getPruneSparsity()
+	{
+		return pruneSparsity;
+	}
+
 	boolean getPrintOptions()
 	{
 		return printOptions;
@@ -172,6 +270,51 @@ public class Options
 		return snapshotEveryNSamples;
 	}
 
+	boolean getUseVectorKernels()
+	{
+		return useVectorKernels;
+	}
+
+	int getThreads()
+	{
+		return threads;
+	}
+
+	int getParallelThreshold()
+	{
+		return parallelThreshold;
+	}
+
+	int getTrainingThreads()
+	{
+		return trainingThreads;
+	}
+
+	boolean getSynchronousTraining()
+	{
+		return synchronousTraining;
+	}
+
+	boolean getPipelineLayers()
+	{
+		return pipelineLayers;
+	}
+
+	boolean getOverlapUpdates()
+	{
+		return overlapUpdates;
+	}
+
+	boolean getConcatenateWeights()
+	{
+		return concatenateWeights;
+	}
+
+	int getCheckpointSteps()
+	{
+		return checkpointSteps;
+	}
+
 	/*** Helper ***/
 
 	// Sets the default values.
@@ -179,11 +322,20 @@ public class Options
 	{
 		hiddenSize = hiddenSizeDefault;
 		layers = layersDefault;
+		precision = precisionDefault;
+		recurrentRank = recurrentRankDefault;
+		outputRank = outputRankDefault;
 
 		sequenceLength = sequenceLengthDefault;
+		batchSize = batchSizeDefault;
 		learningRate = learningRateDefault;
+		optimizer = optimizerDefault;
 
 		samplingTemp = samplingTempDefault;
+		sparseSampling = sparseSamplingDefault;
+		quantizedSampling = quantizedSamplingDefault;
+
+		pruneSparsity = pruneSparsityDefault;
 
 		printOptions = printOptionsDefault;
 		trainingSampleLength = trainingSampleLengthDefault;
@@ -192,6 +344,16 @@ public class Options
 		snapshotEveryNSamples = snapshotEveryNSamplesDefault;
 		inputFile = inputFileDefault;
 		useSingleLayerNet = useSingleLayerNetDefault;
+
+		useVectorKernels = useVectorKernelsDefault;
+		threads = threadsDefault;
+		parallelThreshold = parallelThresholdDefault;
+		trainingThreads = trainingThreadsDefault;
+		synchronousTraining = synchronousTrainingDefault;
+		pipelineLayers = pipelineLayersDefault;
+		overlapUpdates = overlapUpdatesDefault;
+		concatenateWeights = concatenateWeightsDefault;
+		checkpointSteps = checkpointStepsDefault;
 	}
 
 	// Validates the properties and sets to default values where failed.
@@ -199,13 +361,20 @@ public class Options
 	{
 		validateHiddenSize();
 		validateLayers();
+		validateRanks();
 		validateSequenceLength();
+		validateBatchSize();
 		validateLoopAroundTimes();
 		validateSampleEveryNSteps();
 		validateSnapshotEveryNSamples();
 		validateLearningRate();
 		validateSamplingTemp();
+		validatePruneSparsity();
 		validateTrainingSampleLength();
+		validateThreads();
+		validateParallelThreshold();
+		validateTrainingThreads();
+		validateCheckpointSteps();
 	}
 
 	private void validateHiddenSize()
@@ -227,6 +396,24 @@ public class Options
 			    + Integer.toString(layers) + ".");
 		}
 	}
+
+	private void validateRanks()
+	{
+		if (recurrentRank < 0)
+		{
+			recurrentRank = recurrentRankDefault;
+			System.out.println("Recurrent rank must be >= 0. Using default "
+			    + Integer.toString(recurrentRank) + ".");
+		}
+
+		if (outputRank < 0)
+		{
+			outputRank = outputRankDefault;
+			System.out.println("Output rank must be >= 0. Using default "
+			    + Integer.toString(outputRank) + ".");
+		}
+	}
+
 	private void validateSequenceLength()
 	{
 		if (sequenceLength < 1)
@@ -237,6 +424,16 @@ public class Options
 		}
 	}
 
+	private void validateBatchSize()
+	{
+		if (batchSize < 1)
+		{
+			batchSize = batchSizeDefault;
+			System.out.println("Batch size must be >= 1. Using default "
+			    + Integer.toString(batchSize) + ".");
+		}
+	}
+
 	private void validateLoopAroundTimes()
 	{
 
@@ -292,6 +489,16 @@ public class Options
 		}
 	}
 
+	private void validatePruneSparsity()
+	{
+		if (!(pruneSparsity >= 0.0 && pruneSparsity < 1.0))
+		{
+			pruneSparsity = pruneSparsityDefault;
+			System.out.println("Prune sparsity must be in [0, 1). Using "
+			    + "default " + Double.toString(pruneSparsity) + ".");
+		}
+	}
+
 	private void validateTrainingSampleLength()
 	{
 		if (trainingSampleLength < 1)
@@ -303,14 +510,64 @@ public class Options
 		}
 	}
 
+	private void validateThreads()
+	{
+		if (threads < 1)
+		{
+			threads = threadsDefault;
+			System.out.println("Thread count must be >= 1. Using default "
+			    + Integer.toString(threads) + ".");
+		}
+	}
+
+	private void validateParallelThreshold()
+	{
+		if (parallelThreshold < 1)
+		{
+			parallelThreshold = parallelThresholdDefault;
+			System.out.println("Parallel threshold must be >= 1. Using default "
+			    + Integer.toString(parallelThreshold) + ".");
+		}
+	}
+
+	private void validateTrainingThreads()
+	{
+		if (trainingThreads < 1)
+		{
+			trainingThreads = trainingThreadsDefault;
+			System.out.println(
+			    "Training thread count must be >= 1. Using default "
+			    + Integer.toString(trainingThreads) + ".");
+		}
+	}
+
+	private void validateCheckpointSteps()
+	{
+		if (checkpointSteps < 0)
+		{
+			checkpointSteps = checkpointStepsDefault;
+			System.out.println("Checkpoint steps must be >= 0. Using default "
+			    + Integer.toString(checkpointSteps) + ".");
+		}
+	}
+
 	// Gets the properties from the Properties class.
 	private void getProperties()
 	{
 		hiddenSize = parseInt("hiddenSize", hiddenSizeDefault);
 		layers = parseInt("layers", layersDefault);
+		precision = parsePrecision("precision", precisionDefault);
+		recurrentRank = parseInt("recurrentRank", recurrentRankDefault);
+		outputRank = parseInt("outputRank", outputRankDefault);
 		sequenceLength = parseInt("sequenceLength", sequenceLengthDefault);
+		batchSize = parseInt("batchSize", batchSizeDefault);
 		learningRate = parseDouble("learningRate", learningRateDefault);
+		optimizer = parseOptimizer("optimizer", optimizerDefault);
 		samplingTemp = parseDouble("samplingTemp", samplingTempDefault);
+		sparseSampling = parseBool("sparseSampling", sparseSamplingDefault);
+		quantizedSampling =
+		    parseBool("quantizedSampling", quantizedSamplingDefault);
+		pruneSparsity = parseDouble("pruneSparsity", pruneSparsityDefault);
 		printOptions = parseBool("printOptions", printOptionsDefault);
 		trainingSampleLength =
 		    parseInt("trainingSampleLength", trainingSampleLengthDefault);
@@ -322,6 +579,19 @@ public class Options
 		inputFile = prop.getProperty("inputFile");
 		useSingleLayerNet =
 		    parseBool("useSingleLayerNet", useSingleLayerNetDefault);
+		useVectorKernels =
+		    parseBool("useVectorKernels", useVectorKernelsDefault);
+		threads = parseInt("threads", threadsDefault);
+		parallelThreshold =
+		    parseInt("parallelThreshold", parallelThresholdDefault);
+		trainingThreads = parseInt("trainingThreads", trainingThreadsDefault);
+		synchronousTraining =
+		    parseBool("synchronousTraining", synchronousTrainingDefault);
+		pipelineLayers = parseBool("pipelineLayers", pipelineLayersDefault);
+		overlapUpdates = parseBool("overlapUpdates", overlapUpdatesDefault);
+		concatenateWeights =
+		    parseBool("concatenateWeights", concatenateWeightsDefault);
+		checkpointSteps = parseInt("checkpointSteps", checkpointStepsDefault);
 
 		validateProperties();
 	}
@@ -331,9 +601,18 @@ public class Options
 	{
 		prop.setProperty("hiddenSize", Integer.toString(hiddenSize));
 		prop.setProperty("layers", Integer.toString(layers));
+		prop.setProperty("precision", precision.name().toLowerCase());
+		prop.setProperty("recurrentRank", Integer.toString(recurrentRank));
+		prop.setProperty("outputRank", Integer.toString(outputRank));
 		prop.setProperty("sequenceLength", Integer.toString(sequenceLength));
+		prop.setProperty("batchSize", Integer.toString(batchSize));
 		prop.setProperty("learningRate", Double.toString(learningRate));
+		prop.setProperty("optimizer", optimizer.name().toLowerCase());
 		prop.setProperty("samplingTemp", Double.toString(samplingTemp));
+		prop.setProperty("sparseSampling", Boolean.toString(sparseSampling));
+		prop.setProperty(
+		    "quantizedSampling", Boolean.toString(quantizedSampling));
+		prop.setProperty("pruneSparsity", Double.toString(pruneSparsity));
 		prop.setProperty("printOptions", Boolean.toString(printOptions));
 		prop.setProperty(
 		    "trainingSampleLength", Integer.toString(trainingSampleLength));
@@ -345,6 +624,19 @@ public class Options
 		prop.setProperty("inputFile", inputFile);
 		prop.setProperty(
 		    "useSingleLayerNet", Boolean.toString(useSingleLayerNet));
+		prop.setProperty(
+		    "useVectorKernels", Boolean.toString(useVectorKernels));
+		prop.setProperty("threads", Integer.toString(threads));
+		prop.setProperty(
+		    "parallelThreshold", Integer.toString(parallelThreshold));
+		prop.setProperty("trainingThreads", Integer.toString(trainingThreads));
+		prop.setProperty(
+		    "synchronousTraining", Boolean.toString(synchronousTraining));
+		prop.setProperty("pipelineLayers", Boolean.toString(pipelineLayers));
+		prop.setProperty("overlapUpdates", Boolean.toString(overlapUpdates));
+		prop.setProperty(
+		    "concatenateWeights", Boolean.toString(concatenateWeights));
+		prop.setProperty("checkpointSteps", Integer.toString(checkpointSteps));
 	}
 
 	// Parses int, returns the default value if failed.
@@ -379,6 +671,40 @@ public class Options
 		}
 	}
 
+	// Parses precision (double or float), returns the default value if failed.
+	private Precision parsePrecision(String name, Precision defaultValue)
+	{
+		try
+		{
+			return Precision.valueOf(
+			    prop.getProperty(name).trim().toUpperCase());
+		}
+		catch (IllegalArgumentException | NullPointerException e)
+		{
+			System.out.println("Error parsing " + name + ": "
+			    + prop.getProperty(name) + ", defaulting to: "
+			    + defaultValue.name().toLowerCase());
+			return defaultValue;
+		}
+	}
+
+	// Parses the optimizer name, returns the default value if failed.
+	private OptimizerType parseOptimizer(String name, OptimizerType defaultValue)
+	{
+		try
+		{
+			return OptimizerType.valueOf(
+			    prop.getProperty(name).trim().toUpperCase());
+		}
+		catch (IllegalArgumentException | NullPointerException e)
+		{
+			System.out.println("Error parsing " + name + ": "
+			    + prop.getProperty(name) + ", defaulting to: "
+			    + defaultValue.name().toLowerCase());
+			return defaultValue;
+		}
+	}
+
 	// Parses boolean, returns the default value if failed.
 	private boolean parseBool(String name, boolean defaultValue)
 	{
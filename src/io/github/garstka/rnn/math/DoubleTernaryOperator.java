@@ -0,0 +1,9 @@
+package io.github.garstka.rnn.math;
+
+// An operation on three double operands producing a double, the ternary
+// counterpart of java.util.function.DoubleBinaryOperator.
+@FunctionalInterface
+public interface DoubleTernaryOperator
+{
+	double applyAsDouble(double a, double b, double c);
+}
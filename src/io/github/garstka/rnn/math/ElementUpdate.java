@@ -0,0 +1,11 @@
+package io.github.garstka.rnn.math;
+
+// An in-place update of one element w with the matching element d of
+// another matrix, and a few state elements s. rate is the same for all
+// elements of a pass, so one ElementUpdate serves every pass. Returns the
+// new w, and can change s. See Matrix.update.
+@FunctionalInterface
+public interface ElementUpdate
+{
+	double apply(double w, double d, double rate, double[] s);
+}
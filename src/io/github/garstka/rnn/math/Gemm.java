@@ -0,0 +1,321 @@
+package io.github.garstka.rnn.math;
+
+import java.util.Arrays;
+
+// Cache-blocked matrix multiplication kernels for row-major storage.
+//
+// C = A x B is computed in the GotoBLAS fashion: a KCxNC panel of B is packed
+// into NR-wide column strips, an MCxKC block of A into MR-tall row strips,
+// and the micro-kernel accumulates an MRxNR tile of C in registers while
+// streaming both packed strips. Operands are passed as (array, offset,
+// row stride, column stride), so a transposed operand is read by swapping
+// its strides, and packing makes the layout irrelevant to the micro-kernel.
+// A and B can also be stored as floats; they are widened while packing, so
+// the product is always accumulated in double.
+final class Gemm
+{
+	// Register tile
+	static final int MR = 4;
+	static final int NR = 4;
+
+	// Cache blocks: A block fits in L2, B panel in L3.
+	static final int MC = 64;
+	static final int KC = 256;
+	static final int NC = 512;
+
+	// Products with at most this many multiply-adds skip packing. Only
+	// with K <= KC, where both ways sum in the same order, so an element of
+	// C doesn't depend on how many rows are computed with it.
+	static final int smallProduct = 32 * 32 * 32;
+
+	// Packing buffers, one set per thread.
+	private static final ThreadLocal<Buffers> buffers =
+	    ThreadLocal.withInitial(Buffers::new);
+
+	private static final class Buffers
+	{
+		final double[] a = new double[MC * KC]; // packed block of A
+		final double[] b = new double[KC * NC]; // packed panel of B
+	}
+
+	private Gemm()
+	{
+	}
+
+	/* Matrix x matrix */
+
+	// C (MxN, row stride crs) = A (MxK) x B (KxN).
+	// A(i,k) = a[ao + i * ars + k * acs], B(k,j) = b[bo + k * brs + j * bcs].
+	// Exactly one of a and af (b and bf) holds A (B), the other is null.
+	// Large products are split over row blocks of C between threads.
+	static void gemm(int M, int N, int K, double[] a, float[] af, int ao,
+	    int ars, int acs, double[] b, float[] bf, int bo, int brs, int bcs,
+	    double[] c, int co, int crs)
+	{
+		if (Parallel.worthIt((long)M * N * K, M))
+			Parallel.forEach(M,
+			    (from, to)
+			        -> serial(to - from, N, K, a, af, ao + from * ars, ars,
+			            acs, b, bf, bo, brs, bcs, c, co + from * crs, crs));
+		else
+			serial(M, N, K, a, af, ao, ars, acs, b, bf, bo, brs, bcs, c, co,
+			    crs);
+	}
+
+	// Like gemm, on the calling thread.
+	private static void serial(int M, int N, int K, double[] a, float[] af,
+	    int ao, int ars, int acs, double[] b, float[] bf, int bo, int brs,
+	    int bcs, double[] c, int co, int crs)
+	{
+		if ((long)M * N * K <= smallProduct && K <= KC && a != null
+		    && b != null)
+		{
+			small(M, N, K, a, ao, ars, acs, b, bo, brs, bcs, c, co, crs);
+			return;
+		}
+
+		for (int i = 0; i < M; i++)
+			Arrays.fill(c, co + i * crs, co + i * crs + N, 0.0);
+
+		Buffers buf = buffers.get();
+		double[] ap = buf.a;
+		double[] bp = buf.b;
+
+		for (int jc = 0; jc < N; jc += NC)
+		{
+			int nc = java.lang.Math.min(NC, N - jc);
+			for (int pc = 0; pc < K; pc += KC)
+			{
+				int kc = java.lang.Math.min(KC, K - pc);
+				int bi = bo + pc * brs + jc * bcs;
+				if (b != null)
+					packB(kc, nc, b, bi, brs, bcs, bp);
+				else
+					packB(kc, nc, bf, bi, brs, bcs, bp);
+
+				for (int ic = 0; ic < M; ic += MC)
+				{
+					int mc = java.lang.Math.min(MC, M - ic);
+					int ai = ao + ic * ars + pc * acs;
+					if (a != null)
+						packA(mc, kc, a, ai, ars, acs, ap);
+					else
+						packA(mc, kc, af, ai, ars, acs, ap);
+
+					for (int jr = 0; jr < nc; jr += NR)
+					{
+						int nr = java.lang.Math.min(NR, nc - jr);
+						for (int ir = 0; ir < mc; ir += MR)
+						{
+							int mr = java.lang.Math.min(MR, mc - ir);
+							kernel(kc, ap, ir * kc, bp, jr * kc, c,
+							    co + (ic + ir) * crs + jc + jr, crs, mr, nr);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// Unpacked product for small sizes, in the loop order that reads the
+	// operands along their rows.
+	private static void small(int M, int N, int K, double[] a, int ao,
+	    int ars, int acs, double[] b, int bo, int brs, int bcs, double[] c,
+	    int co, int crs)
+	{
+		if (bcs == 1) // B read along rows: i-k-j
+		{
+			for (int i = 0; i < M; i++)
+			{
+				int ci = co + i * crs;
+				Arrays.fill(c, ci, ci + N, 0.0);
+				for (int k = 0; k < K; k++)
+				{
+					double aik = a[ao + i * ars + k * acs];
+					int bk = bo + k * brs;
+					for (int j = 0; j < N; j++)
+						c[ci + j] += aik * b[bk + j];
+				}
+			}
+		}
+		else // B read along columns, as dot products: i-j-k
+		{
+			for (int i = 0; i < M; i++)
+			{
+				int ai = ao + i * ars;
+				int ci = co + i * crs;
+				for (int j = 0; j < N; j++)
+				{
+					double sum = 0.0;
+					int bj = bo + j * bcs;
+					for (int k = 0; k < K; k++)
+						sum += a[ai + k * acs] * b[bj + k * brs];
+					c[ci + j] = sum;
+				}
+			}
+		}
+	}
+
+	// Packs an mc x kc block of A into MR-tall strips, padded with zeros.
+	private static void packA(
+	    int mc, int kc, double[] a, int ao, int ars, int acs, double[] ap)
+	{
+		int dst = 0;
+		for (int ir = 0; ir < mc; ir += MR)
+		{
+			int mr = java.lang.Math.min(MR, mc - ir);
+			for (int p = 0; p < kc; p++)
+			{
+				int src = ao + ir * ars + p * acs;
+				for (int i = 0; i < mr; i++)
+					ap[dst + i] = a[src + i * ars];
+				for (int i = mr; i < MR; i++)
+					ap[dst + i] = 0.0;
+				dst += MR;
+			}
+		}
+	}
+
+	// Packs a kc x nc panel of B into NR-wide strips, padded with zeros.
+	private static void packB(
+	    int kc, int nc, double[] b, int bo, int brs, int bcs, double[] bp)
+	{
+		int dst = 0;
+		for (int jr = 0; jr < nc; jr += NR)
+		{
+			int nr = java.lang.Math.min(NR, nc - jr);
+			for (int p = 0; p < kc; p++)
+			{
+				int src = bo + p * brs + jr * bcs;
+				for (int j = 0; j < nr; j++)
+					bp[dst + j] = b[src + j * bcs];
+				for (int j = nr; j < NR; j++)
+					bp[dst + j] = 0.0;
+				dst += NR;
+			}
+		}
+	}
+
+	// Like packA, widening floats.
+	private static void packA(
+	    int mc, int kc, float[] a, int ao, int ars, int acs, double[] ap)
+	{
+		int dst = 0;
+		for (int ir = 0; ir < mc; ir += MR)
+		{
+			int mr = java.lang.Math.min(MR, mc - ir);
+			for (int p = 0; p < kc; p++)
+			{
+				int src = ao + ir * ars + p * acs;
+				for (int i = 0; i < mr; i++)
+					ap[dst + i] = a[src + i * ars];
+				for (int i = mr; i < MR; i++)
+					ap[dst + i] = 0.0;
+				dst += MR;
+			}
+		}
+	}
+
+	// Like packB, widening floats.
+	private static void packB(
+	    int kc, int nc, float[] b, int bo, int brs, int bcs, double[] bp)
+	{
+		int dst = 0;
+		for (int jr = 0; jr < nc; jr += NR)
+		{
+			int nr = java.lang.Math.min(NR, nc - jr);
+			for (int p = 0; p < kc; p++)
+			{
+				int src = bo + p * brs + jr * bcs;
+				for (int j = 0; j < nr; j++)
+					bp[dst + j] = b[src + j * bcs];
+				for (int j = nr; j < NR; j++)
+					bp[dst + j] = 0.0;
+				dst += NR;
+			}
+		}
+	}
+
+	// Adds the product of an MR-tall strip of A and an NR-wide strip of B
+	// to the mr x nr tile of C at ci.
+	private static void kernel(int kc, double[] ap, int ai, double[] bp,
+	    int bi, double[] c, int ci, int crs, int mr, int nr)
+	{
+		double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+		double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+		double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+		double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+		for (int p = 0; p < kc; p++, ai += MR, bi += NR)
+		{
+			double a0 = ap[ai], a1 = ap[ai + 1], a2 = ap[ai + 2],
+			       a3 = ap[ai + 3];
+			double b0 = bp[bi], b1 = bp[bi + 1], b2 = bp[bi + 2],
+			       b3 = bp[bi + 3];
+
+			c00 += a0 * b0;
+			c01 += a0 * b1;
+			c02 += a0 * b2;
+			c03 += a0 * b3;
+			c10 += a1 * b0;
+			c11 += a1 * b1;
+			c12 += a1 * b2;
+			c13 += a1 * b3;
+			c20 += a2 * b0;
+			c21 += a2 * b1;
+			c22 += a2 * b2;
+			c23 += a2 * b3;
+			c30 += a3 * b0;
+			c31 += a3 * b1;
+			c32 += a3 * b2;
+			c33 += a3 * b3;
+		}
+
+		if (mr == MR && nr == NR)
+		{
+			int r = ci;
+			c[r] += c00;
+			c[r + 1] += c01;
+			c[r + 2] += c02;
+			c[r + 3] += c03;
+			r += crs;
+			c[r] += c10;
+			c[r + 1] += c11;
+			c[r + 2] += c12;
+			c[r + 3] += c13;
+			r += crs;
+			c[r] += c20;
+			c[r + 1] += c21;
+			c[r + 2] += c22;
+			c[r + 3] += c23;
+			r += crs;
+			c[r] += c30;
+			c[r + 1] += c31;
+			c[r + 2] += c32;
+			c[r + 3] += c33;
+		}
+		else // edge tile
+		{
+			addRow(c, ci, nr, c00, c01, c02, c03);
+			if (mr > 1)
+				addRow(c, ci + crs, nr, c10, c11, c12, c13);
+			if (mr > 2)
+				addRow(c, ci + 2 * crs, nr, c20, c21, c22, c23);
+			if (mr > 3)
+				addRow(c, ci + 3 * crs, nr, c30, c31, c32, c33);
+		}
+	}
+
+	// Adds the first nr of x0..x3 to c at ci.
+	private static void addRow(double[] c, int ci, int nr, double x0,
+	    double x1, double x2, double x3)
+	{
+		c[ci] += x0;
+		if (nr > 1)
+			c[ci + 1] += x1;
+		if (nr > 2)
+			c[ci + 2] += x2;
+		if (nr > 3)
+			c[ci + 3] += x3;
+	}
+}
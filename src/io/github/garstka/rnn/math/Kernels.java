@@ -0,0 +1,71 @@
+package io.github.garstka.rnn.math;
+
+// Kernels over contiguous ranges of arrays, used by Matrix for row-wise work.
+// Implemented by ScalarKernels, and by VectorKernels if the JDK Vector API
+// is available.
+interface Kernels
+{
+	/* Level 1 */
+
+	// Returns the dot product of x and y.
+	double dot(double[] x, int xo, double[] y, int yo, int n);
+
+	// Returns the largest element of y.
+	double max(int n, double[] y, int yo);
+
+	// y = e^(x - shift), element-wise. Returns the sum of y.
+	double expSum(int n, double shift, double[] x, int xo, double[] y, int yo);
+
+	// y += alpha * x
+	void axpy(int n, double alpha, double[] x, int xo, double[] y, int yo);
+
+	// y += x
+	void add(int n, double[] x, int xo, double[] y, int yo);
+
+	// y *= x, element-wise
+	void mul(int n, double[] x, int xo, double[] y, int yo);
+
+	// y *= alpha
+	void scale(int n, double alpha, double[] y, int yo);
+
+	// y = e^y, element-wise
+	void exp(int n, double[] y, int yo);
+
+	// y = tanh(y), element-wise
+	void tanh(int n, double[] y, int yo);
+
+	// y = tanh(y + x), element-wise
+	void addTanh(int n, double[] x, int xo, double[] y, int yo);
+
+	// z = (1 - h^2) * g, element-wise: g taken back through h = tanh(.)
+	void tanhGrad(int n, double[] h, int ho, double[] g, int go, double[] z,
+	    int zo);
+
+	/* Level 2 */
+
+	// y = A x, where A is MxK with unit column stride, x has K elements
+	// xs apart, y has M elements ys apart.
+	void gemv(int M, int K, double[] a, int ao, int ars, double[] x, int xo,
+	    int xs, double[] y, int yo, int ys);
+
+	// y = A^T x, where A is MxN with unit column stride, x has M elements
+	// xs apart, y has N elements ys apart.
+	void gemvT(int M, int N, double[] a, int ao, int ars, double[] x, int xo,
+	    int xs, double[] y, int yo, int ys);
+
+	/* Mixed precision: float storage, double arithmetic */
+
+	// y += x
+	void add(int n, float[] x, int xo, double[] y, int yo);
+
+	// y += x, rounding the sums to float
+	void add(int n, double[] x, int xo, float[] y, int yo);
+
+	// Like gemv, with A stored as floats.
+	void gemv(int M, int K, float[] a, int ao, int ars, double[] x, int xo,
+	    int xs, double[] y, int yo, int ys);
+
+	// Like gemvT, with A stored as floats.
+	void gemvT(int M, int N, float[] a, int ao, int ars, double[] x, int xo,
+	    int xs, double[] y, int yo, int ys);
+}
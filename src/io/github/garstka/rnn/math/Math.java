@@ -28,9 +28,15 @@ public class Math
 	// Applies the softmax function with temperature = 1.0
 	public static Matrix softmax(Matrix yAtt)
 	{
-		Matrix e_to_x = new Matrix(yAtt).exp();
-		e_to_x = e_to_x.div(e_to_x.sum());
-		return e_to_x;
+		return softmaxInto(yAtt, Matrix.zerosLike(yAtt));
+	}
+
+	// Applies the softmax function with temperature = 1.0 to yAtt into out,
+	// and returns out. out can be yAtt.
+	public static Matrix softmaxInto(Matrix yAtt, Matrix out)
+	{
+		Matrix e_to_x = Matrix.copyInto(yAtt, out).exp();
+		return e_to_x.div(e_to_x.sum());
 	}
 
 	// Applies the softmax function with the given temperature.
@@ -4,17 +4,43 @@ import io.github.garstka.rnn.math.exceptions.NotAVectorException;
 import io.github.garstka.rnn.math.exceptions.NotRectangularArrayException;
 
 import java.io.Serializable;
-import java.util.function.UnaryOperator;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
 
 // MxN Matrix
 // If M=1 or N=1, the matrix is treated as a k-vector v.
 // v is equivalent to v.T() in scenarios like matrix multiplication,
 // or element-wise addition.
+//
+// Elements are kept in a single row-major array. Element (i,j) is stored at
+// data[offset + i * stride + j], so a matrix can also be a view of a row,
+// a column or a sub-block of another matrix, sharing its storage.
+//
+// The elements can also be stored as floats (Precision.FLOAT), to halve
+// the memory traffic. Arithmetic is still done in double: float elements are
+// widened when read, and rounded when written. Matrix products and the
+// element-wise addition have fast paths for float operands, other operations
+// work on a double copy. Products are always computed into double matrices.
 public class Matrix implements Serializable
 {
 	private int M; // rows
 	private int N; // cols
-	private double[][] data; // MxN
+	private double[] data; // storage, possibly shared with other matrices
+	private float[] fdata; // float storage instead of data, or null
+	private int offset; // index of the element (0,0) in data
+	private int stride; // distance between the starts of two rows in data
+
+	// Use the cache-blocked kernels for matrix products
+	private static boolean blockedKernels = true;
+
+	// Row-wise kernels: scalar, or vectorized if enabled
+	private static Kernels kernels = ScalarKernels.instance;
+
+	// Arrays for the state elements in update, per thread, by length
+	private static final ThreadLocal<double[][]> updateState =
+	    ThreadLocal.withInitial(() -> new double[4][]);
 
 	/* Create */
 
@@ -27,31 +53,40 @@ public class Matrix implements Serializable
 
 		this.M = other.M;
 		this.N = other.N;
-		this.data = Utils.deepCopyOf(other.data);
+		if (other.fdata != null)
+			this.fdata = new float[M * N];
+		else
+			this.data = new double[M * N];
+		this.offset = 0;
+		this.stride = other.N;
+
+		copyInto(other, this);
 	}
 
-	// Constructs using an MxN array. Requires M, N > 0.
-	private Matrix(double data[][])
+	// Constructs a view of data, or of fdata if data is null. Requires
+	// M, N > 0, and that all elements fit in the storage.
+	private Matrix(
+	    int M, int N, double data[], float fdata[], int offset, int stride)
 	{
-		try
-		{
-			this.M = Utils.arrayRows(data);
-			this.N = Utils.arrayCols(data);
-
-			if (this.M == 0 || this.N == 0) // Don't accept 0 as a size.
-				throw new IllegalArgumentException(
-				    "One of the array dimensions is 0.");
-
-			this.data = data;
-		}
-		catch (NotRectangularArrayException | IllegalArgumentException e)
-		{
+		if (!(M > 0 && N > 0))
 			throw new IllegalArgumentException(
-			    "MxN array expected, where M != 0 and N != 0.", e);
-		}
+			    "M > 0 and N > 0 expected as matrix dimensions.");
+		int length = data != null ? data.length : fdata.length;
+		if (!(offset >= 0 && stride >= N
+		        && offset + (long)(M - 1) * stride + N <= length))
+			throw new IllegalArgumentException(
+			    "The matrix doesn't fit in the storage array.");
+
+		this.M = M;
+		this.N = N;
+		this.data = data;
+		this.fdata = data != null ? null : fdata;
+		this.offset = offset;
+		this.stride = stride;
 	}
 
 	// Constructs using an M*N row-major array. Requires M > 0.
+	// The array is not copied.
 	private Matrix(int M, double data[])
 	{
 		if (!(M > 0))
@@ -61,20 +96,40 @@ public class Matrix implements Serializable
 			throw new IllegalArgumentException("A row-major array expected.");
 
 		this.M = M;
-		this.N = data.length % this.M;
-
-		for (int i = 0; i < this.M; i++)
-			for (int j = 0; j < this.N; j++)
-				this.data[i][j] = data[M * i + j];
+		this.N = data.length / M;
+		this.data = data;
+		this.offset = 0;
+		this.stride = this.N;
 	}
 
 	// Returns a matrix constructed using an MxN array. Requires M, N > 0.
 	public static Matrix fromRaw(double data[][])
 	{
-		return new Matrix(Utils.deepCopyOf(data));
+		int M, N;
+		try
+		{
+			M = Utils.arrayRows(data);
+			N = Utils.arrayCols(data);
+
+			if (M == 0 || N == 0) // Don't accept 0 as a size.
+				throw new IllegalArgumentException(
+				    "One of the array dimensions is 0.");
+		}
+		catch (NotRectangularArrayException | IllegalArgumentException e)
+		{
+			throw new IllegalArgumentException(
+			    "MxN array expected, where M != 0 and N != 0.", e);
+		}
+
+		double[] flat = new double[M * N];
+		for (int i = 0; i < M; i++)
+			System.arraycopy(data[i], 0, flat, N * i, N);
+
+		return new Matrix(M, flat);
 	}
 
-	// Constructs using an M*N row-major array. Requires M > 0.
+	// Returns a matrix that wraps an M*N row-major array without copying it.
+	// Requires M > 0.
 	public static Matrix fromFlat(int M, double data[])
 	{
 		return new Matrix(M, data);
@@ -87,7 +142,21 @@ public class Matrix implements Serializable
 			throw new IllegalArgumentException(
 			    "M > 0 and N > 0 expected as matrix dimensions.");
 
-		return new Matrix(new double[M][N]);
+		return new Matrix(M, N, new double[M * N], null, 0, N);
+	}
+
+	// Returns a matrix with all zeros, M rows, N cols, stored with the given
+	// precision. Requires M, N > 0.
+	public static Matrix zeros(int M, int N, Precision precision)
+	{
+		if (precision == Precision.DOUBLE)
+			return zeros(M, N);
+
+		if (!(M > 0 && N > 0))
+			throw new IllegalArgumentException(
+			    "M > 0 and N > 0 expected as matrix dimensions.");
+
+		return new Matrix(M, N, null, new float[M * N], 0, N);
 	}
 
 	// Returns a k-dimensional vector with all zeros. Requires k > 0.
@@ -100,15 +169,15 @@ public class Matrix implements Serializable
 		return zeros(1, k);
 	}
 
-	// Returns a matrix shaped like other with all zeros. Requires other !=
-	// null.
+	// Returns a matrix shaped like other with all zeros, stored with the same
+	// precision. Requires other != null.
 	public static Matrix zerosLike(Matrix other)
 	{
 		if (other == null)
 			throw new NullPointerException(
 			    "Non-null Matrix expected as a shape template.");
 
-		return zeros(other.getM(), other.getN());
+		return zeros(other.getM(), other.getN(), other.getPrecision());
 	}
 
 	// Returns a matrix with all ones, M rows, N cols. Requires M, N > 0.
@@ -128,73 +197,975 @@ public class Matrix implements Serializable
 			throw new IllegalArgumentException(
 			    "k > 0 expected for a k-dimensional vector.");
 
-		return ones(1, k);
+		return ones(1, k);
+	}
+
+	// Returns a matrix shaped like other with all ones.
+	public static Matrix onesLike(Matrix other)
+	{
+		if (other == null)
+			throw new NullPointerException(
+			    "Non-null Matrix expected as a shape template.");
+
+		return ones(other.getM(), other.getN());
+	}
+
+	// Returns a one-hot vector (v.at(i) = 1, v.at(j) = 0 ; j != i).
+	// Requires 0 <= i < k.
+	public static Matrix oneHot(int k, int i)
+	{
+		if (!(0 <= i && i < k))
+			throw new IllegalArgumentException(
+			    "0 <= i < k expected to create a one hot k-dimensional vector.");
+
+		Matrix v = zeros(k);
+		v.setAt(i, 1.0);
+		return v;
+	}
+
+	// Returns the matrix product (a x b)
+	public static Matrix dot(Matrix a, Matrix b)
+	{
+		if (a.N != b.M) // if dimensions are not compatible
+		{
+			if (a.N == 1 && b.N == 1) // if both are vectors
+			{
+				// b^T is compatible (an outer product)
+				b = b.T();
+			}
+			else if (b.M == 1 // if the second one is a vector,
+			    && a.N == b.N) // and the other dimension matches
+			{
+				// b^T is compatible
+				b = b.T();
+			}
+			else
+				throw new RuntimeException(
+				    "Incompatible dimensions for matrix multiplication.");
+		}
+
+		return dotInto(a, b, zeros(a.M, b.N));
+	}
+
+	// Computes the matrix product (a x b) into out and returns out.
+	// If b is a vector of length a.N, it's treated as a column vector, and
+	// out can be a vector of length a.M in either orientation.
+	// Requires that out doesn't share storage with a or b.
+	public static Matrix dotInto(Matrix a, Matrix b, Matrix out)
+	{
+		out.requireDouble();
+
+		if (a.N == b.M && out.M == a.M && out.N == b.N) // a product of matrices
+		{
+			if (a.M == 1 && b.N > 1 && (blockedKernels || b.fdata != null))
+				return dotTNInto(b, a, out); // a row vector: b^T x a
+
+			if (blockedKernels || a.fdata != null || b.fdata != null)
+				Gemm.gemm(a.M, b.N, a.N, a.data, a.fdata, a.offset, a.stride, 1,
+				    b.data, b.fdata, b.offset, b.stride, 1, out.data,
+				    out.offset, out.stride);
+			else
+			{
+				for (int i = 0; i < a.M; i++)
+				{
+					int ai = a.offset + i * a.stride;
+					int ci = out.offset + i * out.stride;
+					for (int j = 0; j < b.N; j++)
+					{
+						double sum = 0.0;
+						int bk = b.offset + j;
+						for (int k = 0; k < a.N; k++, bk += b.stride)
+							sum += a.data[ai + k] * b.data[bk];
+						out.data[ci + j] = sum;
+					}
+				}
+			}
+		}
+		else if (b.isVector() && b.getk() == a.N && out.isVector()
+		    && out.getk() == a.M) // a matrix-vector product
+		{
+			Matrix x = b.asDouble();
+			if (blockedKernels || a.fdata != null)
+			{
+				if (Parallel.worthIt((long)a.M * a.N, a.M))
+					Parallel.forEach(
+					    a.M, (from, to) -> gemvRows(a, x, out, from, to));
+				else
+					gemvRows(a, x, out, 0, a.M);
+			}
+			else
+			{
+				int bs = x.step(), cs = out.step();
+				for (int i = 0; i < a.M; i++)
+				{
+					int ai = a.offset + i * a.stride;
+					double sum = 0.0;
+					for (int k = 0, bk = x.offset; k < a.N; k++, bk += bs)
+						sum += a.data[ai + k] * x.data[bk];
+					out.data[out.offset + i * cs] = sum;
+				}
+			}
+		}
+		else
+			throw new RuntimeException(
+			    "Incompatible dimensions for matrix multiplication.");
+
+		return out;
+	}
+
+	// Computes rows [from, to) of the product of a and the vector x into out.
+	private static void gemvRows(
+	    Matrix a, Matrix x, Matrix out, int from, int to)
+	{
+		int ao = a.offset + from * a.stride, cs = out.step();
+		int co = out.offset + from * cs;
+		if (a.fdata != null)
+			kernels.gemv(to - from, a.N, a.fdata, ao, a.stride, x.data,
+			    x.offset, x.step(), out.data, co, cs);
+		else
+			kernels.gemv(to - from, a.N, a.data, ao, a.stride, x.data,
+			    x.offset, x.step(), out.data, co, cs);
+	}
+
+	// Returns the matrix product (a^T x b), without transposing a.
+	public static Matrix dotTN(Matrix a, Matrix b)
+	{
+		if (a.M == b.M)
+			return dotTNInto(a, b, zeros(a.N, b.N));
+		return dotTNInto(a, b, zeros(a.N));
+	}
+
+	// Computes the matrix product (a^T x b) into out and returns out, without
+	// transposing a. If b is a vector of length a.M, it's treated as a column
+	// vector, and out can be a vector of length a.N in either orientation.
+	// Requires that out doesn't share storage with a or b.
+	public static Matrix dotTNInto(Matrix a, Matrix b, Matrix out)
+	{
+		out.requireDouble();
+
+		if (a.M == b.M && out.M == a.N && out.N == b.N) // a product of matrices
+		{
+			if (blockedKernels || a.fdata != null || b.fdata != null)
+			{
+				Gemm.gemm(a.N, b.N, a.M, a.data, a.fdata, a.offset, 1, a.stride,
+				    b.data, b.fdata, b.offset, b.stride, 1, out.data,
+				    out.offset, out.stride);
+				return out;
+			}
+
+			out.fill(0.0);
+			for (int k = 0; k < a.M; k++)
+			{
+				int ak = a.offset + k * a.stride;
+				int bk = b.offset + k * b.stride;
+				for (int i = 0; i < a.N; i++)
+				{
+					double aki = a.data[ak + i];
+					int ci = out.offset + i * out.stride;
+					for (int j = 0; j < b.N; j++)
+						out.data[ci + j] += aki * b.data[bk + j];
+				}
+			}
+		}
+		else if (b.isVector() && b.getk() == a.M && out.isVector()
+		    && out.getk() == a.N) // a transposed matrix-vector product
+		{
+			Matrix x = b.asDouble();
+			if (blockedKernels || a.fdata != null)
+			{
+				// split over the columns of a
+				if (Parallel.worthIt((long)a.M * a.N, a.N))
+					Parallel.forEach(
+					    a.N, (from, to) -> gemvTCols(a, x, out, from, to));
+				else
+					gemvTCols(a, x, out, 0, a.N);
+				return out;
+			}
+
+			int bs = x.step(), cs = out.step();
+			out.fill(0.0);
+			for (int k = 0; k < a.M; k++)
+			{
+				int ak = a.offset + k * a.stride;
+				double bk = x.data[x.offset + k * bs];
+				for (int i = 0, ci = out.offset; i < a.N; i++, ci += cs)
+					out.data[ci] += a.data[ak + i] * bk;
+			}
+		}
+		else
+			throw new RuntimeException(
+			    "Incompatible dimensions for matrix multiplication.");
+
+		return out;
+	}
+
+	// Computes elements [from, to) of the product of a^T and the vector x
+	// into out.
+	private static void gemvTCols(
+	    Matrix a, Matrix x, Matrix out, int from, int to)
+	{
+		int cs = out.step(), co = out.offset + from * cs;
+		if (a.fdata != null)
+			kernels.gemvT(a.M, to - from, a.fdata, a.offset + from, a.stride,
+			    x.data, x.offset, x.step(), out.data, co, cs);
+		else
+			kernels.gemvT(a.M, to - from, a.data, a.offset + from, a.stride,
+			    x.data, x.offset, x.step(), out.data, co, cs);
+	}
+
+	// Returns the matrix product (a x b^T), without transposing b.
+	public static Matrix dotNT(Matrix a, Matrix b)
+	{
+		return dotNTInto(a, b, zeros(a.M, b.M));
+	}
+
+	// Computes the matrix product (a x b^T) into out and returns out, without
+	// transposing b. Requires that out doesn't share storage with a or b.
+	public static Matrix dotNTInto(Matrix a, Matrix b, Matrix out)
+	{
+		if (!(a.N == b.N && out.M == a.M && out.N == b.M))
+			throw new RuntimeException(
+			    "Incompatible dimensions for matrix multiplication.");
+
+		out.requireDouble();
+
+		if (a.M == 1 && (blockedKernels || b.fdata != null))
+			return dotInto(b, a, out); // a row vector: b x a, no packing
+
+		if (blockedKernels || a.fdata != null || b.fdata != null)
+		{
+			Gemm.gemm(a.M, b.M, a.N, a.data, a.fdata, a.offset, a.stride, 1,
+			    b.data, b.fdata, b.offset, 1, b.stride, out.data, out.offset,
+			    out.stride);
+			return out;
+		}
+
+		for (int i = 0; i < a.M; i++)
+		{
+			int ai = a.offset + i * a.stride;
+			int ci = out.offset + i * out.stride;
+			for (int j = 0; j < b.M; j++)
+			{
+				int bj = b.offset + j * b.stride;
+				double sum = 0.0;
+				for (int k = 0; k < a.N; k++)
+					sum += a.data[ai + k] * b.data[bj + k];
+				out.data[ci + j] = sum;
+			}
+		}
+
+		return out;
+	}
+
+	// Computes the matrix product (a x b^T) into out and returns out, for a
+	// sparse b: each row of out takes a dot product per row of b, over its
+	// non-zero elements only.
+	public static Matrix dotNTInto(Matrix a, SparseMatrix b, Matrix out)
+	{
+		if (!(a.N == b.N && out.M == a.M && out.N == b.M))
+			throw new RuntimeException(
+			    "Incompatible dimensions for matrix multiplication.");
+
+		out.requireDouble();
+
+		Matrix x = a.asDouble();
+		for (int r = 0; r < x.M; r++)
+		{
+			int xr = x.offset + r * x.stride;
+			int cr = out.offset + r * out.stride;
+			for (int i = 0; i < b.M; i++)
+			{
+				double sum = 0.0;
+				for (int k = b.rowStart[i]; k < b.rowStart[i + 1]; k++)
+					sum += b.values[k] * x.data[xr + b.cols[k]];
+				out.data[cr + i] = sum;
+			}
+		}
+
+		return out;
+	}
+
+	/*
+	    Computes the matrix product (a x b^T) into out and returns out, for
+	    an int8 b. Each row of a is rounded to int8 too, into qx, with its
+	    own scale, so that the dot products are summed as ints, and scaled
+	    back once per element of out. This adds the rounding error of a to
+	    that of b. Requires qx.length >= a.N.
+	*/
+	public static Matrix dotNTInto(
+	    Matrix a, QuantizedMatrix b, Matrix out, byte[] qx)
+	{
+		if (!(a.N == b.N && out.M == a.M && out.N == b.M))
+			throw new RuntimeException(
+			    "Incompatible dimensions for matrix multiplication.");
+
+		if (qx.length < a.N)
+			throw new IllegalArgumentException("Buffer too short.");
+
+		out.requireDouble();
+
+		Matrix x = a.asDouble();
+		for (int r = 0; r < x.M; r++)
+		{
+			int xr = x.offset + r * x.stride;
+			int cr = out.offset + r * out.stride;
+
+			double max = 0.0;
+			for (int k = 0; k < x.N; k++)
+				max = java.lang.Math.max(
+				    max, java.lang.Math.abs(x.data[xr + k]));
+
+			double sx = max / QuantizedMatrix.levels;
+			if (sx == 0.0) // a zero row
+			{
+				Arrays.fill(out.data, cr, cr + b.M, 0.0);
+				continue;
+			}
+
+			for (int k = 0; k < x.N; k++)
+				qx[k] = (byte)java.lang.Math.round(x.data[xr + k] / sx);
+
+			for (int i = 0; i < b.M; i++)
+			{
+				int sum = 0;
+				int bi = i * b.N;
+				for (int k = 0; k < b.N; k++)
+					sum += qx[k] * b.values[bi + k];
+				out.data[cr + i] = sum * sx * b.scale[i];
+			}
+		}
+
+		return out;
+	}
+
+	// Adds the outer product of vectors a and b (a x b^T) to this matrix.
+	// Requires a.k = M and b.k = N.
+	public Matrix addOuter(Matrix a, Matrix b)
+	{
+		if (!(a.isVector() && b.isVector() && a.getk() == M && b.getk() == N))
+			throw new RuntimeException(
+			    "Vectors incompatible for an outer product.");
+
+		if (fdata != null)
+			return viaDouble(m -> m.addOuter(a, b));
+
+		Matrix x = a.asDouble(), y = b.asDouble();
+		if (parallel())
+			Parallel.forEach(M, (from, to) -> addOuterRows(x, y, from, to));
+		else
+			addOuterRows(x, y, 0, M);
+
+		return this;
+	}
+
+	// Adds rows [from, to) of a x b^T to this matrix.
+	private void addOuterRows(Matrix a, Matrix b, int from, int to)
+	{
+		int as = a.step(), bs = b.step();
+		for (int i = from; i < to; i++)
+		{
+			double ai = a.data[a.offset + i * as];
+			int r = offset + i * stride;
+			if (bs == 1)
+				kernels.axpy(N, ai, b.data, b.offset, data, r);
+			else
+				for (int j = 0, bj = b.offset; j < N; j++, bj += bs)
+					data[r + j] += ai * b.data[bj];
+		}
+	}
+
+	// Copies column j of a into the vector out and returns out: the product
+	// of a and a one-hot vector, without the multiplication. Requires
+	// 0 <= j < a.N and out.k = a.M.
+	public static Matrix columnInto(Matrix a, int j, Matrix out)
+	{
+		if (!(0 <= j && j < a.N))
+			throw new IndexOutOfBoundsException("Column index out of bounds.");
+		if (!(out.isVector() && out.getk() == a.M))
+			throw new RuntimeException(
+			    "Vector incompatible with the column length.");
+
+		int cs = out.step();
+		for (int i = 0; i < a.M; i++)
+			out.put(out.offset + i * cs, a.get(a.offset + i * a.stride + j));
+
+		return out;
+	}
+
+	// Like columnInto, for an int8 a.
+	public static Matrix columnInto(QuantizedMatrix a, int j, Matrix out)
+	{
+		if (!(0 <= j && j < a.N))
+			throw new IndexOutOfBoundsException("Column index out of bounds.");
+		if (!(out.isVector() && out.getk() == a.M))
+			throw new RuntimeException(
+			    "Vector incompatible with the column length.");
+
+		int cs = out.step();
+		for (int i = 0; i < a.M; i++)
+			out.put(out.offset + i * cs, a.values[i * a.N + j] * a.scale[i]);
+
+		return out;
+	}
+
+	// Adds the vector v to column j: the outer product of v and a one-hot
+	// vector, added only where it's non-zero. Requires 0 <= j < N and v.k = M.
+	public Matrix addToColumn(int j, Matrix v)
+	{
+		if (!(0 <= j && j < N))
+			throw new IndexOutOfBoundsException("Column index out of bounds.");
+		if (!(v.isVector() && v.getk() == M))
+			throw new RuntimeException(
+			    "Vector incompatible with the column length.");
+
+		int vs = v.step();
+		for (int i = 0; i < M; i++)
+		{
+			int r = offset + i * stride + j;
+			put(r, get(r) + v.get(v.offset + i * vs));
+		}
+
+		return this;
+	}
+
+	// Copies the transpose of a into out and returns out. Requires out to be
+	// shaped like a.T(), and not to share storage with a.
+	public static Matrix transposeInto(Matrix a, Matrix out)
+	{
+		if (!(out.M == a.N && out.N == a.M))
+			throw new RuntimeException(
+			    "Incompatible dimensions for a transpose.");
+
+		for (int i = 0; i < a.M; i++)
+		{
+			int r = a.offset + i * a.stride;
+			for (int j = 0; j < a.N; j++)
+				out.put(out.offset + j * out.stride + i, a.get(r + j));
+		}
+
+		return out;
+	}
+
+	/* Operators with a destination */
+
+	// Copies a into out and returns out. Requires the matrices to have the same
+	// dimensions, or to be vectors of the same length.
+	public static Matrix copyInto(Matrix a, Matrix out)
+	{
+		if (a.M == out.M && a.N == out.N)
+		{
+			for (int i = 0; i < a.M; i++)
+				copyRow(a, a.offset + i * a.stride, out,
+				    out.offset + i * out.stride, a.N);
+		}
+		else if (a.sameVectorLength(out))
+		{
+			int k = a.getk(), as = a.step(), cs = out.step();
+			for (int i = 0; i < k; i++)
+				out.put(out.offset + i * cs, a.get(a.offset + i * as));
+		}
+		else
+			throw new RuntimeException(
+			    "Matrices/vectors incompatible for copying.");
+
+		return out;
+	}
+
+	// Adds a and b element-wise into out and returns out. out can be a or b.
+	// Requires the matrices to have the same dimensions, or to be vectors of
+	// the same length.
+	public static Matrix addInto(Matrix a, Matrix b, Matrix out)
+	{
+		if (a.fdata != null || b.fdata != null || out.fdata != null)
+			return copyInto(
+			    addInto(a.asDouble(), b.asDouble(), zeros(out.M, out.N)), out);
+
+		if (sameShape(a, b, out))
+		{
+			for (int i = 0; i < a.M; i++)
+			{
+				int ar = a.offset + i * a.stride;
+				int br = b.offset + i * b.stride;
+				int cr = out.offset + i * out.stride;
+				for (int j = 0; j < a.N; j++)
+					out.data[cr + j] = a.data[ar + j] + b.data[br + j];
+			}
+		}
+		else if (a.sameVectorLength(b) && a.sameVectorLength(out))
+		{
+			int k = a.getk(), as = a.step(), bs = b.step(), cs = out.step();
+			for (int i = 0; i < k; i++)
+				out.data[out.offset + i * cs] =
+				    a.data[a.offset + i * as] + b.data[b.offset + i * bs];
+		}
+		else
+			throw new RuntimeException(
+			    "Matrices/vectors incompatible for element-wise addition.");
+
+		return out;
+	}
+
+	// Multiplies a and b element-wise into out and returns out. out can be a
+	// or b. Requires the matrices to have the same dimensions, or to be
+	// vectors of the same length.
+	public static Matrix mulInto(Matrix a, Matrix b, Matrix out)
+	{
+		if (a.fdata != null || b.fdata != null || out.fdata != null)
+			return copyInto(
+			    mulInto(a.asDouble(), b.asDouble(), zeros(out.M, out.N)), out);
+
+		if (sameShape(a, b, out))
+		{
+			for (int i = 0; i < a.M; i++)
+			{
+				int ar = a.offset + i * a.stride;
+				int br = b.offset + i * b.stride;
+				int cr = out.offset + i * out.stride;
+				for (int j = 0; j < a.N; j++)
+					out.data[cr + j] = a.data[ar + j] * b.data[br + j];
+			}
+		}
+		else if (a.sameVectorLength(b) && a.sameVectorLength(out))
+		{
+			int k = a.getk(), as = a.step(), bs = b.step(), cs = out.step();
+			for (int i = 0; i < k; i++)
+				out.data[out.offset + i * cs] =
+				    a.data[a.offset + i * as] * b.data[b.offset + i * bs];
+		}
+		else
+			throw new RuntimeException(
+			    "Matrices/vectors incompatible for element-wise multiplication.");
+
+		return out;
+	}
+
+	// Divides a by b element-wise into out and returns out. out can be a or b.
+	// Requires the matrices to have the same dimensions, or to be vectors of
+	// the same length.
+	public static Matrix divInto(Matrix a, Matrix b, Matrix out)
+	{
+		if (a.fdata != null || b.fdata != null || out.fdata != null)
+			return copyInto(
+			    divInto(a.asDouble(), b.asDouble(), zeros(out.M, out.N)), out);
+
+		if (sameShape(a, b, out))
+		{
+			for (int i = 0; i < a.M; i++)
+			{
+				int ar = a.offset + i * a.stride;
+				int br = b.offset + i * b.stride;
+				int cr = out.offset + i * out.stride;
+				for (int j = 0; j < a.N; j++)
+					out.data[cr + j] = a.data[ar + j] / b.data[br + j];
+			}
+		}
+		else if (a.sameVectorLength(b) && a.sameVectorLength(out))
+		{
+			int k = a.getk(), as = a.step(), bs = b.step(), cs = out.step();
+			for (int i = 0; i < k; i++)
+				out.data[out.offset + i * cs] =
+				    a.data[a.offset + i * as] / b.data[b.offset + i * bs];
+		}
+		else
+			throw new RuntimeException(
+			    "Matrices/vectors incompatible for element-wise division.");
+
+		return out;
+	}
+
+	// Applies f element-wise to a into out and returns out. out can be a.
+	// Requires the matrices to have the same dimensions, or to be vectors of
+	// the same length.
+	public static Matrix mapInto(Matrix a, DoubleUnaryOperator f, Matrix out)
+	{
+		if (f == null)
+			throw new NullPointerException("Non-null f expected.");
+
+		if (sameShape(a, a, out))
+		{
+			boolean doubles = a.data != null && out.data != null;
+			for (int i = 0; i < a.M; i++)
+			{
+				int ar = a.offset + i * a.stride;
+				int cr = out.offset + i * out.stride;
+				if (doubles)
+					for (int j = 0; j < a.N; j++)
+						out.data[cr + j] = f.applyAsDouble(a.data[ar + j]);
+				else
+					for (int j = 0; j < a.N; j++)
+						out.put(cr + j, f.applyAsDouble(a.get(ar + j)));
+			}
+		}
+		else if (a.sameVectorLength(out))
+		{
+			int k = a.getk(), as = a.step(), cs = out.step();
+			for (int i = 0; i < k; i++)
+				out.put(out.offset + i * cs,
+				    f.applyAsDouble(a.get(a.offset + i * as)));
+		}
+		else
+			throw new RuntimeException(
+			    "Matrices/vectors incompatible for element-wise mapping.");
+
+		return out;
+	}
+
+	// Applies f element-wise to a and b into out and returns out. out can be
+	// a or b. Requires the matrices to have the same dimensions, or to be
+	// vectors of the same length.
+	public static Matrix mapInto(
+	    Matrix a, Matrix b, DoubleBinaryOperator f, Matrix out)
+	{
+		if (f == null)
+			throw new NullPointerException("Non-null f expected.");
+
+		if (sameShape(a, b, out))
+		{
+			boolean doubles =
+			    a.data != null && b.data != null && out.data != null;
+			for (int i = 0; i < a.M; i++)
+			{
+				int ar = a.offset + i * a.stride;
+				int br = b.offset + i * b.stride;
+				int cr = out.offset + i * out.stride;
+				if (doubles)
+					for (int j = 0; j < a.N; j++)
+						out.data[cr + j] =
+						    f.applyAsDouble(a.data[ar + j], b.data[br + j]);
+				else
+					for (int j = 0; j < a.N; j++)
+						out.put(cr + j,
+						    f.applyAsDouble(a.get(ar + j), b.get(br + j)));
+			}
+		}
+		else if (a.sameVectorLength(b) && a.sameVectorLength(out))
+		{
+			int k = a.getk(), as = a.step(), bs = b.step(), cs = out.step();
+			for (int i = 0; i < k; i++)
+				out.put(out.offset + i * cs,
+				    f.applyAsDouble(
+				        a.get(a.offset + i * as), b.get(b.offset + i * bs)));
+		}
+		else
+			throw new RuntimeException(
+			    "Matrices/vectors incompatible for element-wise mapping.");
+
+		return out;
+	}
+
+	// Applies f element-wise to a, b and c into out and returns out. out can
+	// be any of a, b, c. Requires the matrices to have the same dimensions,
+	// or to be vectors of the same length.
+	public static Matrix mapInto(
+	    Matrix a, Matrix b, Matrix c, DoubleTernaryOperator f, Matrix out)
+	{
+		if (f == null)
+			throw new NullPointerException("Non-null f expected.");
+
+		if (sameShape(a, b, out) && sameShape(a, c, out))
+		{
+			boolean doubles = a.data != null && b.data != null
+			    && c.data != null && out.data != null;
+			for (int i = 0; i < a.M; i++)
+			{
+				int ar = a.offset + i * a.stride;
+				int br = b.offset + i * b.stride;
+				int cr = c.offset + i * c.stride;
+				int or = out.offset + i * out.stride;
+				if (doubles)
+					for (int j = 0; j < a.N; j++)
+						out.data[or + j] = f.applyAsDouble(
+						    a.data[ar + j], b.data[br + j], c.data[cr + j]);
+				else
+					for (int j = 0; j < a.N; j++)
+						out.put(or + j, f.applyAsDouble(a.get(ar + j),
+						                    b.get(br + j), c.get(cr + j)));
+			}
+		}
+		else if (a.sameVectorLength(b) && a.sameVectorLength(c)
+		    && a.sameVectorLength(out))
+		{
+			int k = a.getk(), as = a.step(), bs = b.step(), cs = c.step(),
+			    os = out.step();
+			for (int i = 0; i < k; i++)
+				out.put(out.offset + i * os,
+				    f.applyAsDouble(a.get(a.offset + i * as),
+				        b.get(b.offset + i * bs), c.get(c.offset + i * cs)));
+		}
+		else
+			throw new RuntimeException(
+			    "Matrices/vectors incompatible for element-wise mapping.");
+
+		return out;
+	}
+
+	// Applies tanh(x) element-wise to a into out and returns out. out can be
+	// a. Requires the matrices to have the same dimensions, or to be vectors
+	// of the same length.
+	public static Matrix tanhInto(Matrix a, Matrix out)
+	{
+		return copyInto(a, out).tanh();
+	}
+
+	// Computes the recurrent cell tanh(w x h + z) into out and returns out.
+	// The addition and tanh are applied to each block of rows of the
+	// product as soon as it's computed, instead of in separate passes.
+	// h, z and out are vectors, or they hold a batch of states, one per row,
+	// for out = tanh(h x w^T + z). Requires that out doesn't share storage
+	// with w, h or z.
+	public static Matrix tanhCellInto(Matrix w, Matrix h, Matrix z, Matrix out)
+	{
+		out.requireDouble();
+
+		if (h.M > 1 && h.N == w.N) // a batch of states
+		{
+			if (!(z.M == h.M && z.N == w.M && out.M == h.M && out.N == w.M))
+				throw new RuntimeException(
+				    "Incompatible dimensions for a recurrent cell.");
+
+			dotNTInto(h, w, out);
+			if (z.fdata != null)
+				return out.add(z).tanh();
+
+			for (int i = 0; i < out.M; i++)
+				kernels.addTanh(out.N, z.data, z.offset + i * z.stride,
+				    out.data, out.offset + i * out.stride);
+			return out;
+		}
+
+		if (!(h.isVector() && h.getk() == w.N && z.isVector()
+		        && z.getk() == w.M && out.isVector() && out.getk() == w.M))
+			throw new RuntimeException(
+			    "Incompatible dimensions for a recurrent cell.");
+
+		if (!(blockedKernels || w.fdata != null) || z.fdata != null
+		    || z.step() != 1 || out.step() != 1)
+			return dotInto(w, h, out).add(z).tanh();
+
+		Matrix x = h.asDouble();
+		if (Parallel.worthIt((long)w.M * w.N, w.M))
+			Parallel.forEach(
+			    w.M, (from, to) -> tanhCellRows(w, x, z, out, from, to));
+		else
+			tanhCellRows(w, x, z, out, 0, w.M);
+
+		return out;
+	}
+
+	// Like tanhCellInto, for a sparse w, with the states h as rows.
+	public static Matrix tanhCellInto(
+	    SparseMatrix w, Matrix h, Matrix z, Matrix out)
+	{
+		if (!(z.M == h.M && z.N == w.M))
+			throw new RuntimeException(
+			    "Incompatible dimensions for a recurrent cell.");
+
+		return dotNTInto(h, w, out).add(z).tanh();
+	}
+
+	// Like tanhCellInto, for an int8 w, with the states h as rows, rounded
+	// to int8 into qx (see dotNTInto).
+	public static Matrix tanhCellInto(
+	    QuantizedMatrix w, Matrix h, Matrix z, Matrix out, byte[] qx)
+	{
+		if (!(z.M == h.M && z.N == w.M))
+			throw new RuntimeException(
+			    "Incompatible dimensions for a recurrent cell.");
+
+		return dotNTInto(h, w, out, qx).add(z).tanh();
+	}
+
+	// Computes rows [from, to) of tanhCellInto.
+	private static void tanhCellRows(
+	    Matrix w, Matrix x, Matrix z, Matrix out, int from, int to)
+	{
+		gemvRows(w, x, out, from, to);
+		kernels.addTanh(
+		    to - from, z.data, z.offset + from, out.data, out.offset + from);
+	}
+
+	// Computes (1 - h^2) * g element-wise into out and returns out: the
+	// gradient g taken back through h = tanh(.), in one pass. out can be g.
+	// Requires the matrices to have the same dimensions, or to be vectors of
+	// the same length.
+	public static Matrix tanhGradInto(Matrix h, Matrix g, Matrix out)
+	{
+		if (h.fdata != null || g.fdata != null || out.fdata != null)
+			return copyInto(
+			    tanhGradInto(h.asDouble(), g.asDouble(), zeros(out.M, out.N)),
+			    out);
+
+		if (sameShape(h, g, out))
+		{
+			for (int i = 0; i < h.M; i++)
+				kernels.tanhGrad(h.N, h.data, h.offset + i * h.stride, g.data,
+				    g.offset + i * g.stride, out.data,
+				    out.offset + i * out.stride);
+		}
+		else if (h.sameVectorLength(g) && h.sameVectorLength(out))
+		{
+			int k = h.getk(), hs = h.step(), gs = g.step(), cs = out.step();
+			for (int i = 0; i < k; i++)
+			{
+				double hi = h.data[h.offset + i * hs];
+				out.data[out.offset + i * cs] =
+				    (1.0 - hi * hi) * g.data[g.offset + i * gs];
+			}
+		}
+		else
+			throw new RuntimeException(
+			    "Matrices/vectors incompatible for the tanh gradient.");
+
+		return out;
+	}
+
+	// Computes the gradient of the cross-entropy loss of softmax(y) with
+	// respect to y, softmax(y) - onehot(target), into dy, and returns the
+	// loss -log(softmax(y)[target]). The softmax is shifted by max(y), and
+	// the loss is taken as log-sum-exp(y) - y[target], so large inputs don't
+	// overflow. y and dy are contiguous vectors of the same length, dy can
+	// be y. Requires 0 <= target < k.
+	public static double softmaxCrossEntropyInto(
+	    Matrix y, int target, Matrix dy)
+	{
+		if (!(y.isVector() && y.isContiguous() && dy.isVector()
+		        && dy.isContiguous() && y.getk() == dy.getk()))
+			throw new RuntimeException(
+			    "Contiguous vectors of the same length expected.");
+
+		int k = y.getk();
+		if (!(0 <= target && target < k))
+			throw new IndexOutOfBoundsException("Target index out of bounds.");
+
+		if (y.fdata != null || dy.fdata != null)
+		{
+			Matrix tmp = zeros(1, k);
+			double loss = softmaxCrossEntropyInto(y.asDouble(), target, tmp);
+			copyInto(tmp, dy);
+			return loss;
+		}
+
+		double yt = y.data[y.offset + target];
+		double max = kernels.max(k, y.data, y.offset);
+		double sum =
+		    kernels.expSum(k, max, y.data, y.offset, dy.data, dy.offset);
+		kernels.scale(k, 1.0 / sum, dy.data, dy.offset);
+		dy.data[dy.offset + target] -= 1.0;
+
+		return max + java.lang.Math.log(sum) - yt;
+	}
+
+	// Returns the transpose of this matrix.
+	public Matrix T()
+	{
+		return transposeInto(this, zeros(N, M, getPrecision()));
+	}
+
+	/* Kernels */
+
+	// Chooses between the cache-blocked matrix product kernels (the default)
+	// and the plain loops.
+	public static void setBlockedKernels(boolean on)
+	{
+		blockedKernels = on;
+	}
+
+	// Returns true, if the cache-blocked kernels are used.
+	public static boolean getBlockedKernels()
+	{
+		return blockedKernels;
+	}
+
+	// Chooses between the kernels written with the JDK Vector API and the
+	// scalar ones (the default). The vector kernels need the
+	// jdk.incubator.vector module and the compiled VectorKernels class.
+	// Returns true, if the vector kernels are in use afterwards.
+	public static boolean setVectorKernels(boolean on)
+	{
+		if (!on)
+		{
+			kernels = ScalarKernels.instance;
+			return false;
+		}
+
+		try
+		{
+			kernels = (Kernels)Class
+			              .forName("io.github.garstka.rnn.math.VectorKernels")
+			              .getDeclaredConstructor()
+			              .newInstance();
+			return true;
+		}
+		catch (ReflectiveOperationException | LinkageError e)
+		{
+			kernels = ScalarKernels.instance; // module or class not present
+			return false;
+		}
+	}
+
+	// Returns true, if the vector kernels are used.
+	public static boolean getVectorKernels()
+	{
+		return kernels != ScalarKernels.instance;
+	}
+
+	// Splits large matrix products and element-wise operations over row
+	// blocks between this many threads. Operations with less than threshold
+	// multiply-adds (or elements) stay serial. Requires threads >= 1 and
+	// threshold >= 1. One thread (the default) turns the splitting off.
+	public static void setParallelism(int threads, int threshold)
+	{
+		Parallel.configure(threads, threshold);
 	}
 
-	// Returns a matrix shaped like other with all ones.
-	public static Matrix onesLike(Matrix other)
+	// Returns the thread count for matrix operations.
+	public static int getParallelThreads()
 	{
-		if (other == null)
-			throw new NullPointerException(
-			    "Non-null Matrix expected as a shape template.");
+		return Parallel.getThreads();
+	}
 
-		return ones(other.getM(), other.getN());
+	// Returns the minimum work split between threads.
+	public static int getParallelThreshold()
+	{
+		return Parallel.getThreshold();
 	}
 
-	// Returns a one-hot vector (v.at(i) = 1, v.at(j) = 0 ; j != i).
-	// Requires 0 <= i < k.
-	public static Matrix oneHot(int k, int i)
+	/* Views */
+
+	// Returns row i as a 1xN view sharing storage with this matrix.
+	// Requires 0 <= i < M.
+	public Matrix row(int i)
 	{
-		if (!(0 <= i && i < k))
-			throw new IllegalArgumentException(
-			    "0 <= i < k expected to create a one hot k-dimensional vector.");
+		if (!(0 <= i && i < M))
+			throw new IndexOutOfBoundsException("Row index out of bounds.");
 
-		Matrix v = zeros(k);
-		v.setAt(i, 1.0);
-		return v;
+		return new Matrix(1, N, data, fdata, offset + i * stride, N);
 	}
 
-	// Returns the matrix product (a x b)
-	public static Matrix dot(Matrix a, Matrix b)
+	// Returns column j as an Mx1 view sharing storage with this matrix.
+	// Requires 0 <= j < N.
+	public Matrix col(int j)
 	{
-		// System.out.println("a: " + a.M + "x" + a.N + "b:" + b.M + "x" + b.N);
-		if (a.N != b.M) // if dimensions are not compatible
-		{
-			if (a.N == 1 && b.N == 1) // if both are vectors
-			{
-				// b^T is compatible (an outer product)
-				b = b.T();
-			}
-			else if (b.M == 1 // if the second one is a vector,
-			    && a.N == b.N) // and the other dimension matches
-			{
-				// b^T is compatible
-				b = b.T();
-			}
-			else
-				throw new RuntimeException(
-				    "Incompatible dimensions for matrix multiplication.");
-		}
-
-		double[][] c = new double[a.M][b.N];
-		for (int i = 0; i < a.M; i++)
-			for (int j = 0; j < b.N; j++)
-				for (int k = 0; k < a.N; k++)
-					c[i][j] += a.data[i][k] * b.data[k][j];
+		if (!(0 <= j && j < N))
+			throw new IndexOutOfBoundsException("Column index out of bounds.");
 
-		return new Matrix(c);
+		return new Matrix(M, 1, data, fdata, offset + j, stride);
 	}
 
-	// Returns the transpose of this matrix.
-	public Matrix T()
+	// Returns the m x n sub-block starting at (i,j) as a view sharing storage
+	// with this matrix. Requires the block to lie within the matrix.
+	public Matrix block(int i, int j, int m, int n)
 	{
-		double[][] new_data = new double[N][M];
+		if (!(0 <= i && 0 < m && i + m <= M && 0 <= j && 0 < n && j + n <= N))
+			throw new IndexOutOfBoundsException("Block out of bounds.");
 
-		for (int i = 0; i < M; i++)
-			for (int j = 0; j < N; j++)
-				new_data[j][i] = data[i][j];
+		return new Matrix(m, n, data, fdata, offset + i * stride + j, stride);
+	}
 
-		return new Matrix(new_data);
+	// Returns true, if the elements are stored without gaps between rows.
+	public boolean isContiguous()
+	{
+		return M == 1 || stride == N;
 	}
 
 	/* Operators */
@@ -202,9 +1173,15 @@ public class Matrix implements Serializable
 	// Adds x to all elements.
 	public Matrix add(double x)
 	{
-		for (double[] row : data)
+		if (fdata != null)
+			return viaDouble(m -> m.add(x));
+
+		for (int i = 0; i < M; i++)
+		{
+			int r = offset + i * stride;
 			for (int j = 0; j < N; j++)
-				row[j] += x;
+				data[r + j] += x;
+		}
 		return this;
 	}
 
@@ -212,23 +1189,23 @@ public class Matrix implements Serializable
 	// dimensions.
 	public Matrix add(Matrix other)
 	{
+		if (fdata != null && other.fdata != null)
+			return viaDouble(m -> m.add(other));
+
 		if (M == other.M && N == other.N) // compatible matrices
 		{
-			for (int i = 0; i < M; i++)
-				for (int j = 0; j < N; j++)
-					data[i][j] += other.data[i][j];
-		}
-		else if (M == other.N && N == 1 && other.M == 1)
-		{
-			// this is a row vector and other is a column vector
-			for (int i = 0; i < M; i++)
-				data[i][0] += other.data[0][i];
+			if (parallel())
+				Parallel.forEach(M, (from, to) -> addRows(other, from, to));
+			else
+				addRows(other, 0, M);
 		}
-		else if (N == other.M && M == 1 && other.N == 1)
+		else if (sameVectorLength(other))
 		{
-			// this is a column vector and other is a row vector
-			for (int i = 0; i < N; i++)
-				data[0][i] += other.data[i][0];
+			// a row vector and a column vector
+			int k = getk(), s = step(), os = other.step();
+			for (int i = 0; i < k; i++)
+				put(offset + i * s,
+				    get(offset + i * s) + other.get(other.offset + i * os));
 		}
 		else
 			throw new RuntimeException(
@@ -237,35 +1214,65 @@ public class Matrix implements Serializable
 		return this;
 	}
 
+	// Adds the vector v to each row. Requires v.k = N.
+	public Matrix addToRows(Matrix v)
+	{
+		if (!(v.isVector() && v.getk() == N))
+			throw new RuntimeException(
+			    "Vector incompatible with the row length.");
+
+		if (fdata != null)
+			return viaDouble(m -> m.addToRows(v));
+
+		int vs = v.step();
+		for (int i = 0; i < M; i++)
+		{
+			int r = offset + i * stride;
+			if (vs != 1)
+				for (int j = 0; j < N; j++)
+					data[r + j] += v.get(v.offset + j * vs);
+			else if (v.fdata != null)
+				kernels.add(N, v.fdata, v.offset, data, r);
+			else
+				kernels.add(N, v.data, v.offset, data, r);
+		}
+
+		return this;
+	}
+
 	// Multiplies all elements by x.
 	public Matrix mul(double x)
 	{
-		for (double[] row : data)
-			for (int j = 0; j < N; j++)
-				row[j] *= x;
+		if (fdata != null)
+			return viaDouble(m -> m.mul(x));
+
+		if (parallel())
+			Parallel.forEach(M, (from, to) -> scaleRows(x, from, to));
+		else
+			scaleRows(x, 0, M);
 		return this;
 	}
 
 	// Multiplies element-wise.
 	public Matrix mul(Matrix other)
 	{
-		if (M == other.M && N == other.N) // compatible matrices
-		{
-			for (int i = 0; i < M; i++)
-				for (int j = 0; j < N; j++)
-					data[i][j] *= other.data[i][j];
-		}
-		else if (M == other.N && N == 1 && other.M == 1)
+		if (fdata != null)
+			return viaDouble(m -> m.mul(other));
+
+		Matrix o = other.asDouble();
+		if (M == o.M && N == o.N) // compatible matrices
 		{
-			// this is a row vector and other is a column vector
-			for (int i = 0; i < M; i++)
-				data[i][0] *= other.data[0][i];
+			if (parallel())
+				Parallel.forEach(M, (from, to) -> mulRows(o, from, to));
+			else
+				mulRows(o, 0, M);
 		}
-		else if (N == other.M && M == 1 && other.N == 1)
+		else if (sameVectorLength(o))
 		{
-			// this is a column vector and other is a row vector
-			for (int i = 0; i < N; i++)
-				data[0][i] *= other.data[i][0];
+			// a row vector and a column vector
+			int k = getk(), s = step(), os = o.step();
+			for (int i = 0; i < k; i++)
+				data[offset + i * s] *= o.data[o.offset + i * os];
 		}
 		else
 			throw new RuntimeException(
@@ -283,32 +1290,41 @@ public class Matrix implements Serializable
 	// Divides all elements by x.
 	public Matrix div(double x)
 	{
-		for (double[] row : data)
+		if (fdata != null)
+			return viaDouble(m -> m.div(x));
+
+		for (int i = 0; i < M; i++)
+		{
+			int r = offset + i * stride;
 			for (int j = 0; j < N; j++)
-				row[j] /= x;
+				data[r + j] /= x;
+		}
 		return this;
 	}
 
 	// Divides element-wise.
 	public Matrix div(Matrix other)
 	{
-		if (M == other.M && N == other.N) // compatible matrices
+		if (fdata != null)
+			return viaDouble(m -> m.div(other));
+
+		Matrix d = other.asDouble();
+		if (M == d.M && N == d.N) // compatible matrices
 		{
 			for (int i = 0; i < M; i++)
+			{
+				int r = offset + i * stride;
+				int o = d.offset + i * d.stride;
 				for (int j = 0; j < N; j++)
-					data[i][j] /= other.data[i][j];
-		}
-		else if (M == other.N && N == 1 && other.M == 1)
-		{
-			// this is a row vector and other is a column vector
-			for (int i = 0; i < M; i++)
-				data[i][0] /= other.data[0][i];
+					data[r + j] /= d.data[o + j];
+			}
 		}
-		else if (N == other.M && M == 1 && other.N == 1)
+		else if (sameVectorLength(d))
 		{
-			// this is a column vector and other is a row vector
-			for (int i = 0; i < N; i++)
-				data[0][i] /= other.data[i][0];
+			// a row vector and a column vector
+			int k = getk(), s = step(), os = d.step();
+			for (int i = 0; i < k; i++)
+				data[offset + i * s] /= d.data[d.offset + i * os];
 		}
 		else
 			throw new RuntimeException(
@@ -320,18 +1336,55 @@ public class Matrix implements Serializable
 	// Applies e^x element-wise.
 	public Matrix exp()
 	{
-		for (double[] row : data)
-			for (int j = 0; j < N; j++)
-				row[j] = java.lang.Math.exp(row[j]);
+		if (fdata != null)
+			return viaDouble(Matrix::exp);
+
+		if (parallel())
+			Parallel.forEach(M, this::expRows);
+		else
+			expRows(0, M);
 		return this;
 	}
 
 	// Applies tanh(x) element-wise.
 	public Matrix tanh()
 	{
-		for (double[] row : data)
+		if (fdata != null)
+			return viaDouble(Matrix::tanh);
+
+		if (parallel())
+			Parallel.forEach(M, this::tanhRows);
+		else
+			tanhRows(0, M);
+		return this;
+	}
+
+	// Applies sqrt(x) element-wise.
+	public Matrix sqrt()
+	{
+		if (fdata != null)
+			return viaDouble(Matrix::sqrt);
+
+		for (int i = 0; i < M; i++)
+		{
+			int r = offset + i * stride;
 			for (int j = 0; j < N; j++)
-				row[j] = java.lang.Math.tanh(row[j]);
+				data[r + j] = java.lang.Math.sqrt(data[r + j]);
+		}
+		return this;
+	}
+
+	// Sets all elements to x.
+	public Matrix fill(double x)
+	{
+		for (int i = 0; i < M; i++)
+		{
+			int r = offset + i * stride;
+			if (fdata != null)
+				Arrays.fill(fdata, r, r + N, (float)x);
+			else
+				Arrays.fill(data, r, r + N, x);
+		}
 		return this;
 	}
 
@@ -342,36 +1395,158 @@ public class Matrix implements Serializable
 			throw new IllegalArgumentException(
 			    "An interval [a,b], a < b expected.");
 
-		for (double[] row : data)
-			for (int j = 0; j < N; j++)
+		if (fdata != null)
+			return viaDouble(m -> m.clip(x_a, x_b));
+
+		for (int i = 0; i < M; i++)
+		{
+			int r = offset + i * stride;
+			for (int j = r; j < r + N; j++)
 			{
-				if (row[j] < x_a)
-					row[j] = x_a;
-				else if (x_b < row[j])
-					row[j] = x_b;
+				if (data[j] < x_a)
+					data[j] = x_a;
+				else if (x_b < data[j])
+					data[j] = x_b;
 			}
+		}
 
 		return this;
 	}
 
-	// Calls f for each element.
-	public Matrix apply(UnaryOperator<Double> f)
+	// Sets each element x to f(x).
+	public Matrix apply(DoubleUnaryOperator f)
 	{
-		for (double[] row : data)
-			for (int j = 0; j < N; j++)
-				row[j] = f.apply(row[j]).doubleValue();
+		return mapInto(this, f, this);
+	}
+
+	// Sets each element x to f(x, y), where y is the matching element of b.
+	// Requires the same dimensions as mapInto.
+	public Matrix apply(Matrix b, DoubleBinaryOperator f)
+	{
+		return mapInto(this, b, f, this);
+	}
+
+	// Sets each element x to f(x, y, z), where y, z are the matching elements
+	// of b, c. Requires the same dimensions as mapInto.
+	public Matrix apply(Matrix b, Matrix c, DoubleTernaryOperator f)
+	{
+		return mapInto(this, b, c, f, this);
+	}
+
+	// Updates each element w to f.apply(w, d, rate, s), where d is the
+	// matching element of grad, and s holds the matching elements of the
+	// state matrices, which f can change. Everything happens in one pass,
+	// state is read and written element by element. Requires the matrices
+	// to have the same dimensions, or to be vectors of the same length.
+	public Matrix update(
+	    Matrix grad, Matrix[] state, double rate, ElementUpdate f)
+	{
+		if (grad == null || state == null || f == null)
+			throw new NullPointerException("Non-null arguments expected.");
+
+		double[] s = stateArray(state.length);
+
+		boolean shaped = sameShape(this, grad, this);
+		boolean doubles = data != null && grad.data != null;
+		for (Matrix m : state)
+		{
+			shaped = shaped && sameShape(this, m, this);
+			doubles = doubles && m.data != null;
+		}
+
+		if (shaped && doubles)
+		{
+			for (int i = 0; i < M; i++)
+			{
+				int r = offset + i * stride;
+				int gr = grad.offset + i * grad.stride;
+				for (int j = 0; j < N; j++)
+				{
+					for (int k = 0; k < s.length; k++)
+						s[k] = state[k].data[state[k].offset
+						    + i * state[k].stride + j];
+
+					data[r + j] =
+					    f.apply(data[r + j], grad.data[gr + j], rate, s);
+
+					for (int k = 0; k < s.length; k++)
+						state[k].data[state[k].offset + i * state[k].stride
+						    + j] = s[k];
+				}
+			}
+		}
+		else if (shaped)
+		{
+			for (int i = 0; i < M; i++)
+				for (int j = 0; j < N; j++)
+				{
+					int r = offset + i * stride + j;
+					for (int k = 0; k < s.length; k++)
+						s[k] = state[k].get(
+						    state[k].offset + i * state[k].stride + j);
+
+					put(r, f.apply(get(r),
+					           grad.get(grad.offset + i * grad.stride + j), rate,
+					           s));
+
+					for (int k = 0; k < s.length; k++)
+						state[k].put(
+						    state[k].offset + i * state[k].stride + j, s[k]);
+				}
+		}
+		else
+		{
+			boolean vectors = sameVectorLength(grad);
+			for (Matrix m : state)
+				vectors = vectors && sameVectorLength(m);
+
+			if (!vectors)
+				throw new RuntimeException(
+				    "Matrices/vectors incompatible for element-wise update.");
+
+			int k = getk(), ws = step(), gs = grad.step();
+			for (int i = 0; i < k; i++)
+			{
+				for (int l = 0; l < s.length; l++)
+					s[l] = state[l].get(state[l].offset + i * state[l].step());
+
+				int r = offset + i * ws;
+				put(r,
+				    f.apply(get(r), grad.get(grad.offset + i * gs), rate, s));
+
+				for (int l = 0; l < s.length; l++)
+					state[l].put(state[l].offset + i * state[l].step(), s[l]);
+			}
+		}
+
 		return this;
 	}
 
+	// Returns this thread's array for n state elements in update, so that
+	// updates of many small views (say, columns) don't allocate.
+	private static double[] stateArray(int n)
+	{
+		double[][] arrays = updateState.get();
+		if (n >= arrays.length)
+			return new double[n];
+
+		if (arrays[n] == null)
+			arrays[n] = new double[n];
+		return arrays[n];
+	}
+
 	/* Other of all elements */
 
 	// Returns the sum of elements.
 	public double sum()
 	{
 		double sum = 0.0;
-		for (double[] row : data)
+		for (int i = 0; i < M; i++)
+		{
+			int r = offset + i * stride;
 			for (int j = 0; j < N; j++)
-				sum += row[j];
+				sum += get(r + j);
+		}
 
 		return sum;
 	}
@@ -380,9 +1555,12 @@ public class Matrix implements Serializable
 	public double prod()
 	{
 		double prod = 0.0;
-		for (double[] row : data)
+		for (int i = 0; i < M; i++)
+		{
+			int r = offset + i * stride;
 			for (int j = 0; j < N; j++)
-				prod *= row[j];
+				prod *= get(r + j);
+		}
 
 		return prod;
 	}
@@ -390,19 +1568,38 @@ public class Matrix implements Serializable
 	// Returns a copy of the MxN array.
 	public double[][] raw()
 	{
-		return Utils.deepCopyOf(data);
+		double[][] result = new double[M][N];
+
+		for (int i = 0; i < M; i++)
+			copyRow(this, offset + i * stride, fromFlat(1, result[i]), 0, N);
+
+		return result;
 	}
 
 	// Returns a row-major flattened array.
 	public double[] unravel()
 	{
 		double[] result = new double[M * N];
+		copyInto(this, new Matrix(M, result));
+		return result;
+	}
 
-		for (int i = 0; i < M; i++)
-			for (int j = 0; j < N; j++)
-				result[N * i + j] = data[i][j];
+	/* Precision */
 
-		return result;
+	// Returns the storage precision.
+	public Precision getPrecision()
+	{
+		return fdata != null ? Precision.FLOAT : Precision.DOUBLE;
+	}
+
+	// Returns this matrix, if it's stored with the given precision, or else
+	// a copy stored with it.
+	public Matrix toPrecision(Precision precision)
+	{
+		if (precision == getPrecision())
+			return this;
+
+		return copyInto(this, zeros(M, N, precision));
 	}
 
 	/* State */
@@ -423,26 +1620,27 @@ public class Matrix implements Serializable
 
 		boolean one_already_encountered = false;
 		int one_hot_index = 0;
-		for (int i = 0; i < M; i++)
-			for (int j = 0; j < N; j++)
+		int k = getk(), s = step();
+		for (int i = 0; i < k; i++)
+		{
+			double x = get(offset + i * s);
+			if (Math.close(x, 0.0)) // ignore zeros
 			{
-				if (Math.close(data[i][j], 0.0)) // ignore zeros
-				{
-					// continue
-				}
-				else if (Math.close(data[i][j], 1.0)) // allow a single one
-				{
-					if (one_already_encountered)
-						throw new RuntimeException(
-						    "A one-hot vector can't have multiple ones.");
-
-					one_already_encountered = true;
-					one_hot_index = (M == 1 ? j : i);
-				}
-				else
+				// continue
+			}
+			else if (Math.close(x, 1.0)) // allow a single one
+			{
+				if (one_already_encountered)
 					throw new RuntimeException(
-					    "A one-hot vector can't have elements other than 0 or 1.");
+					    "A one-hot vector can't have multiple ones.");
+
+				one_already_encountered = true;
+				one_hot_index = i;
 			}
+			else
+				throw new RuntimeException(
+				    "A one-hot vector can't have elements other than 0 or 1.");
+		}
 
 		if (!one_already_encountered)
 			throw new RuntimeException("One-hot vector can't be all zeros.");
@@ -487,9 +1685,7 @@ public class Matrix implements Serializable
 			throw new IndexOutOfBoundsException(
 			    "Vector element index out of bounds.");
 
-		if (M == 1)
-			return data[0][i]; // row vector
-		return data[i][0]; // column vector
+		return get(offset + i * step());
 	}
 
 	// Returns the matrix element at i,j. Requires i < M, j < N.
@@ -499,7 +1695,7 @@ public class Matrix implements Serializable
 			throw new IndexOutOfBoundsException(
 			    "Matrix element index out of bounds.");
 
-		return data[i][j];
+		return get(offset + i * stride + j);
 	}
 
 	// Returns the vector element at m.oneHotIndex(). Requires index to be a
@@ -523,10 +1719,7 @@ public class Matrix implements Serializable
 			throw new IndexOutOfBoundsException(
 			    "Vector element index out of bounds.");
 
-		if (M == 1)
-			data[0][i] = x; // row vector
-		if (N == 1)
-			data[i][0] = x; // column vector
+		put(offset + i * step(), x);
 	}
 
 	// Sets the matrix element at i,j to x. Requires 0 <= i < M and 0 <= j < N.
@@ -536,7 +1729,7 @@ public class Matrix implements Serializable
 			throw new IndexOutOfBoundsException(
 			    "Matrix element index out of bounds.");
 
-		data[i][j] = x;
+		put(offset + i * stride + j, x);
 	}
 
 	// Sets the vector element at m.oneHotIndex() to x.
@@ -545,4 +1738,125 @@ public class Matrix implements Serializable
 	{
 		setAt(m.oneHotIndex(), x);
 	}
-}
\ No newline at end of file
+
+	/* Helpers */
+
+	// Returns true, if element-wise work on this matrix should be split
+	// between threads.
+	private boolean parallel()
+	{
+		return Parallel.worthIt((long)M * N, M);
+	}
+
+	// Row-wise kernels for rows [from, to).
+
+	private void addRows(Matrix other, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			int o = other.offset + i * other.stride, r = offset + i * stride;
+			if (fdata != null)
+				kernels.add(N, other.data, o, fdata, r);
+			else if (other.fdata != null)
+				kernels.add(N, other.fdata, o, data, r);
+			else
+				kernels.add(N, other.data, o, data, r);
+		}
+	}
+
+	private void mulRows(Matrix other, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			kernels.mul(N, other.data, other.offset + i * other.stride, data,
+			    offset + i * stride);
+	}
+
+	private void scaleRows(double x, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			kernels.scale(N, x, data, offset + i * stride);
+	}
+
+	private void expRows(int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			kernels.exp(N, data, offset + i * stride);
+	}
+
+	private void tanhRows(int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			kernels.tanh(N, data, offset + i * stride);
+	}
+
+	// Returns the element at index i of the storage.
+	private double get(int i)
+	{
+		return fdata != null ? fdata[i] : data[i];
+	}
+
+	// Sets the element at index i of the storage to x.
+	private void put(int i, double x)
+	{
+		if (fdata != null)
+			fdata[i] = (float)x;
+		else
+			data[i] = x;
+	}
+
+	// Copies n elements of a from ai to out at ci.
+	private static void copyRow(Matrix a, int ai, Matrix out, int ci, int n)
+	{
+		if (a.data != null && out.data != null)
+			System.arraycopy(a.data, ai, out.data, ci, n);
+		else if (a.fdata != null && out.fdata != null)
+			System.arraycopy(a.fdata, ai, out.fdata, ci, n);
+		else if (out.fdata != null)
+			for (int j = 0; j < n; j++)
+				out.fdata[ci + j] = (float)a.data[ai + j];
+		else
+			for (int j = 0; j < n; j++)
+				out.data[ci + j] = a.fdata[ai + j];
+	}
+
+	// Returns this matrix, if it's stored as doubles, or else a double copy.
+	private Matrix asDouble()
+	{
+		return toPrecision(Precision.DOUBLE);
+	}
+
+	// Applies op to a double copy of this float matrix, and stores the result.
+	private Matrix viaDouble(Consumer<Matrix> op)
+	{
+		Matrix m = asDouble();
+		op.accept(m);
+		return copyInto(m, this);
+	}
+
+	// Throws, if the matrix isn't stored as doubles.
+	private void requireDouble()
+	{
+		if (fdata != null)
+			throw new IllegalArgumentException(
+			    "Matrix products are computed into double matrices.");
+	}
+
+	// Returns the distance in data between two consecutive vector elements.
+	private int step()
+	{
+		return M == 1 ? 1 : stride;
+	}
+
+	// Returns true, if all three have the same dimensions.
+	private static boolean sameShape(Matrix a, Matrix b, Matrix c)
+	{
+		return a.M == b.M && a.N == b.N && a.M == c.M && a.N == c.N;
+	}
+
+	// Returns true, if both are vectors of the same length.
+	private boolean sameVectorLength(Matrix other)
+	{
+		return (M == 1 || N == 1) && (other.M == 1 || other.N == 1)
+		    && getk() == other.getk();
+	}
+}
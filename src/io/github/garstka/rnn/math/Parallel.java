@@ -0,0 +1,116 @@
+package io.github.garstka.rnn.math;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Splits Matrix operations over index ranges across a fork/join pool.
+// Operations smaller than the threshold, or all of them if there's only one
+// thread, run serially on the calling thread.
+final class Parallel
+{
+	// Defaults
+
+	static final int defaultThreads = 1;
+	static final int defaultThreshold = 1 << 16;
+
+	private static ForkJoinPool pool; // null if serial
+	private static int threads = defaultThreads;
+	private static int threshold = defaultThreshold;
+
+	// Work on [from, to) of some index range.
+	interface RangeTask
+	{
+		void run(int from, int to);
+	}
+
+	private Parallel()
+	{
+	}
+
+	/* Configure */
+
+	// Sets the thread count and the minimum work (in multiply-adds, or
+	// elements) worth splitting. Requires threads >= 1, threshold >= 1.
+	static synchronized void configure(int threads, int threshold)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one thread expected.");
+
+		if (threshold < 1)
+			throw new IllegalArgumentException("Threshold must be >= 1.");
+
+		if (threads != Parallel.threads)
+		{
+			if (pool != null)
+				pool.shutdown();
+
+			pool = threads > 1 ? new ForkJoinPool(threads) : null;
+			Parallel.threads = threads;
+		}
+
+		Parallel.threshold = threshold;
+	}
+
+	static int getThreads()
+	{
+		return threads;
+	}
+
+	static int getThreshold()
+	{
+		return threshold;
+	}
+
+	/* Run */
+
+	// Returns true, if this much work over n indices should be split.
+	static boolean worthIt(long work, int n)
+	{
+		return pool != null && n > 1 && work >= threshold;
+	}
+
+	// Runs task over [0, n), split into about one range per thread.
+	static void forEach(int n, RangeTask task)
+	{
+		ForkJoinPool p = pool;
+		if (p == null)
+		{
+			task.run(0, n);
+			return;
+		}
+
+		int grain = (n + p.getParallelism() - 1) / p.getParallelism();
+		p.invoke(new Split(task, 0, n, grain));
+	}
+
+	// Halves a range until it's at most grain long.
+	private static final class Split extends RecursiveAction
+	{
+		private final RangeTask task;
+		private final int from;
+		private final int to;
+		private final int grain;
+
+		Split(RangeTask task, int from, int to, int grain)
+		{
+			this.task = task;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= grain)
+			{
+				task.run(from, to);
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(new Split(task, from, mid, grain),
+			    new Split(task, mid, to, grain));
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package io.github.garstka.rnn.math;
+
+// Storage precision of a Matrix.
+public enum Precision
+{
+	DOUBLE, // 64-bit elements
+	FLOAT   // 32-bit elements, widened to double in arithmetic
+}
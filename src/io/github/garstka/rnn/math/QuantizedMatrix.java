@@ -0,0 +1,76 @@
+package io.github.garstka.rnn.math;
+
+import java.io.Serializable;
+
+// MxN matrix of int8 elements with a float scale per row: element (i,j) is
+// values[i * N + j] * scale[i]. Each row is scaled so that its largest
+// magnitude maps to 127. An eighth of the size of a double matrix, a quarter
+// of a float one. Immutable. The products are in Matrix.
+public final class QuantizedMatrix implements Serializable
+{
+	static final int levels = 127; // largest magnitude of an element
+
+	final int M; // rows
+	final int N; // cols
+	final byte[] values; // row-major
+	final float[] scale; // per row
+
+	private QuantizedMatrix(int M, int N, byte[] values, float[] scale)
+	{
+		this.M = M;
+		this.N = N;
+		this.values = values;
+		this.scale = scale;
+	}
+
+	// Returns a rounded to int8, row by row. Requires a != null.
+	public static QuantizedMatrix fromDense(Matrix a)
+	{
+		if (a == null)
+			throw new NullPointerException(
+			    "Non-null Matrix expected for quantization.");
+
+		int M = a.getM(), N = a.getN();
+
+		byte[] values = new byte[M * N];
+		float[] scale = new float[M];
+		for (int i = 0; i < M; i++)
+		{
+			double max = 0.0;
+			for (int j = 0; j < N; j++)
+				max = java.lang.Math.max(max, java.lang.Math.abs(a.at(i, j)));
+
+			scale[i] = (float)(max / levels);
+			if (scale[i] == 0.0f) // all zeros
+				continue;
+
+			for (int j = 0; j < N; j++)
+				values[i * N + j] = (byte)java.lang.Math.max(-levels,
+				    java.lang.Math.min(levels,
+				        java.lang.Math.round(a.at(i, j) / scale[i])));
+		}
+
+		return new QuantizedMatrix(M, N, values, scale);
+	}
+
+	// Returns the number of rows.
+	public int getM()
+	{
+		return M;
+	}
+
+	// Returns the number of columns.
+	public int getN()
+	{
+		return N;
+	}
+
+	// Returns element (i,j), as stored. Requires 0 <= i < M, 0 <= j < N.
+	public double at(int i, int j)
+	{
+		if (!(0 <= i && i < M && 0 <= j && j < N))
+			throw new IndexOutOfBoundsException("Index out of bounds.");
+
+		return values[i * N + j] * (double)scale[i];
+	}
+}
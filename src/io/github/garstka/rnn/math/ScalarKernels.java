@@ -0,0 +1,229 @@
+package io.github.garstka.rnn.math;
+
+// Plain Java kernels. The JIT may auto-vectorize some of the loops.
+final class ScalarKernels implements Kernels
+{
+	static final ScalarKernels instance = new ScalarKernels();
+
+	private ScalarKernels()
+	{
+	}
+
+	/* Level 1 */
+
+	public double dot(double[] x, int xo, double[] y, int yo, int n)
+	{
+		double sum = 0.0;
+		for (int i = 0; i < n; i++)
+			sum += x[xo + i] * y[yo + i];
+		return sum;
+	}
+
+	public double max(int n, double[] y, int yo)
+	{
+		double max = y[yo];
+		for (int i = yo + 1; i < yo + n; i++)
+			if (y[i] > max)
+				max = y[i];
+		return max;
+	}
+
+	public double expSum(
+	    int n, double shift, double[] x, int xo, double[] y, int yo)
+	{
+		double sum = 0.0;
+		for (int i = 0; i < n; i++)
+		{
+			double e = java.lang.Math.exp(x[xo + i] - shift);
+			y[yo + i] = e;
+			sum += e;
+		}
+		return sum;
+	}
+
+	public void axpy(int n, double alpha, double[] x, int xo, double[] y, int yo)
+	{
+		for (int i = 0; i < n; i++)
+			y[yo + i] += alpha * x[xo + i];
+	}
+
+	public void add(int n, double[] x, int xo, double[] y, int yo)
+	{
+		for (int i = 0; i < n; i++)
+			y[yo + i] += x[xo + i];
+	}
+
+	public void mul(int n, double[] x, int xo, double[] y, int yo)
+	{
+		for (int i = 0; i < n; i++)
+			y[yo + i] *= x[xo + i];
+	}
+
+	public void scale(int n, double alpha, double[] y, int yo)
+	{
+		for (int i = yo; i < yo + n; i++)
+			y[i] *= alpha;
+	}
+
+	public void exp(int n, double[] y, int yo)
+	{
+		for (int i = yo; i < yo + n; i++)
+			y[i] = java.lang.Math.exp(y[i]);
+	}
+
+	public void tanh(int n, double[] y, int yo)
+	{
+		for (int i = yo; i < yo + n; i++)
+			y[i] = java.lang.Math.tanh(y[i]);
+	}
+
+	public void addTanh(int n, double[] x, int xo, double[] y, int yo)
+	{
+		for (int i = 0; i < n; i++)
+			y[yo + i] = java.lang.Math.tanh(y[yo + i] + x[xo + i]);
+	}
+
+	public void tanhGrad(int n, double[] h, int ho, double[] g, int go,
+	    double[] z, int zo)
+	{
+		for (int i = 0; i < n; i++)
+		{
+			double hi = h[ho + i];
+			z[zo + i] = (1.0 - hi * hi) * g[go + i];
+		}
+	}
+
+	/* Level 2 */
+
+	// Four rows share each load of x.
+	public void gemv(int M, int K, double[] a, int ao, int ars, double[] x,
+	    int xo, int xs, double[] y, int yo, int ys)
+	{
+		int i = 0;
+		for (; i + 3 < M; i += 4)
+		{
+			int a0 = ao + i * ars, a1 = a0 + ars, a2 = a1 + ars,
+			    a3 = a2 + ars;
+			double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+			for (int k = 0, xk = xo; k < K; k++, xk += xs)
+			{
+				double xv = x[xk];
+				s0 += a[a0 + k] * xv;
+				s1 += a[a1 + k] * xv;
+				s2 += a[a2 + k] * xv;
+				s3 += a[a3 + k] * xv;
+			}
+			y[yo + i * ys] = s0;
+			y[yo + (i + 1) * ys] = s1;
+			y[yo + (i + 2) * ys] = s2;
+			y[yo + (i + 3) * ys] = s3;
+		}
+		for (; i < M; i++)
+		{
+			int ai = ao + i * ars;
+			double sum = 0.0;
+			for (int k = 0, xk = xo; k < K; k++, xk += xs)
+				sum += a[ai + k] * x[xk];
+			y[yo + i * ys] = sum;
+		}
+	}
+
+	// Four rows of A are folded into y per pass.
+	public void gemvT(int M, int N, double[] a, int ao, int ars, double[] x,
+	    int xo, int xs, double[] y, int yo, int ys)
+	{
+		for (int j = 0; j < N; j++)
+			y[yo + j * ys] = 0.0;
+
+		int i = 0;
+		for (; i + 3 < M; i += 4)
+		{
+			int a0 = ao + i * ars, a1 = a0 + ars, a2 = a1 + ars,
+			    a3 = a2 + ars;
+			double x0 = x[xo + i * xs], x1 = x[xo + (i + 1) * xs],
+			       x2 = x[xo + (i + 2) * xs], x3 = x[xo + (i + 3) * xs];
+			for (int j = 0, yj = yo; j < N; j++, yj += ys)
+				y[yj] += a[a0 + j] * x0 + a[a1 + j] * x1 + a[a2 + j] * x2
+				    + a[a3 + j] * x3;
+		}
+		for (; i < M; i++)
+		{
+			int ai = ao + i * ars;
+			double xi = x[xo + i * xs];
+			for (int j = 0, yj = yo; j < N; j++, yj += ys)
+				y[yj] += a[ai + j] * xi;
+		}
+	}
+
+	/* Mixed precision */
+
+	public void add(int n, float[] x, int xo, double[] y, int yo)
+	{
+		for (int i = 0; i < n; i++)
+			y[yo + i] += x[xo + i];
+	}
+
+	public void add(int n, double[] x, int xo, float[] y, int yo)
+	{
+		for (int i = 0; i < n; i++)
+			y[yo + i] = (float)(y[yo + i] + x[xo + i]);
+	}
+
+	public void gemv(int M, int K, float[] a, int ao, int ars, double[] x,
+	    int xo, int xs, double[] y, int yo, int ys)
+	{
+		int i = 0;
+		for (; i + 3 < M; i += 4)
+		{
+			int a0 = ao + i * ars, a1 = a0 + ars, a2 = a1 + ars,
+			    a3 = a2 + ars;
+			double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+			for (int k = 0, xk = xo; k < K; k++, xk += xs)
+			{
+				double xv = x[xk];
+				s0 += a[a0 + k] * xv;
+				s1 += a[a1 + k] * xv;
+				s2 += a[a2 + k] * xv;
+				s3 += a[a3 + k] * xv;
+			}
+			y[yo + i * ys] = s0;
+			y[yo + (i + 1) * ys] = s1;
+			y[yo + (i + 2) * ys] = s2;
+			y[yo + (i + 3) * ys] = s3;
+		}
+		for (; i < M; i++)
+		{
+			int ai = ao + i * ars;
+			double sum = 0.0;
+			for (int k = 0, xk = xo; k < K; k++, xk += xs)
+				sum += a[ai + k] * x[xk];
+			y[yo + i * ys] = sum;
+		}
+	}
+
+	public void gemvT(int M, int N, float[] a, int ao, int ars, double[] x,
+	    int xo, int xs, double[] y, int yo, int ys)
+	{
+		for (int j = 0; j < N; j++)
+			y[yo + j * ys] = 0.0;
+
+		int i = 0;
+		for (; i + 3 < M; i += 4)
+		{
+			int a0 = ao + i * ars, a1 = a0 + ars, a2 = a1 + ars,
+			    a3 = a2 + ars;
+			double x0 = x[xo + i * xs], x1 = x[xo + (i + 1) * xs],
+			       x2 = x[xo + (i + 2) * xs], x3 = x[xo + (i + 3) * xs];
+			for (int j = 0, yj = yo; j < N; j++, yj += ys)
+				y[yj] += a[a0 + j] * x0 + a[a1 + j] * x1 + a[a2 + j] * x2
+				    + a[a3 + j] * x3;
+		}
+		for (; i < M; i++)
+		{
+			int ai = ao + i * ars;
+			double xi = x[xo + i * xs];
+			for (int j = 0, yj = yo; j < N; j++, yj += ys)
+				y[yj] += a[ai + j] * xi;
+		}
+	}
+}
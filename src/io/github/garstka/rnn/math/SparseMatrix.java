@@ -0,0 +1,77 @@
+package io.github.garstka.rnn.math;
+
+// MxN sparse matrix in the compressed sparse row (CSR) format: the non-zero
+// elements of row i are values[k], in column cols[k], for k in
+// [rowStart[i], rowStart[i + 1]). Immutable. The products are in Matrix.
+public final class SparseMatrix
+{
+	final int M; // rows
+	final int N; // cols
+	final int[] rowStart; // M + 1 indices into cols and values
+	final int[] cols; // column of each non-zero element, by row
+	final double[] values; // the non-zero elements, by row
+
+	private SparseMatrix(
+	    int M, int N, int[] rowStart, int[] cols, double[] values)
+	{
+		this.M = M;
+		this.N = N;
+		this.rowStart = rowStart;
+		this.cols = cols;
+		this.values = values;
+	}
+
+	// Returns the non-zero elements of a, as a sparse matrix. Requires
+	// a != null.
+	public static SparseMatrix fromDense(Matrix a)
+	{
+		if (a == null)
+			throw new NullPointerException(
+			    "Non-null Matrix expected for conversion.");
+
+		int M = a.getM(), N = a.getN();
+
+		int[] rowStart = new int[M + 1];
+		for (int i = 0; i < M; i++)
+		{
+			int count = 0;
+			for (int j = 0; j < N; j++)
+				if (a.at(i, j) != 0.0)
+					count++;
+			rowStart[i + 1] = rowStart[i] + count;
+		}
+
+		int[] cols = new int[rowStart[M]];
+		double[] values = new double[rowStart[M]];
+		for (int i = 0, k = 0; i < M; i++)
+			for (int j = 0; j < N; j++)
+			{
+				double x = a.at(i, j);
+				if (x != 0.0)
+				{
+					cols[k] = j;
+					values[k++] = x;
+				}
+			}
+
+		return new SparseMatrix(M, N, rowStart, cols, values);
+	}
+
+	// Returns the number of rows.
+	public int getM()
+	{
+		return M;
+	}
+
+	// Returns the number of columns.
+	public int getN()
+	{
+		return N;
+	}
+
+	// Returns the number of non-zero elements.
+	public int nonZeros()
+	{
+		return rowStart[M];
+	}
+}
@@ -0,0 +1,55 @@
+package io.github.garstka.rnn.net;
+
+import io.github.garstka.rnn.math.ElementUpdate;
+import io.github.garstka.rnn.math.Matrix;
+
+// Adagrad: scales the steps by the root of the summed squared gradients.
+// State: the sum of squared gradients.
+public class Adagrad implements Optimizer
+{
+	private final double eps; // Keeps the scale finite.
+
+	private transient ElementUpdate rule; // See rule().
+
+	public static final double defaultEps = 1e-8;
+
+	// Creates with the default parameters.
+	public Adagrad()
+	{
+		this(defaultEps);
+	}
+
+	// Creates with custom parameters. Requires eps > 0.
+	public Adagrad(double eps)
+	{
+		if (!(eps > 0.0))
+			throw new IllegalArgumentException("eps > 0 expected.");
+
+		this.eps = eps;
+	}
+
+	@Override
+	public int stateSize()
+	{
+		return 1;
+	}
+
+	@Override
+	public void update(Matrix param, Matrix grad, Matrix[] state,
+	    double learningRate, long step)
+	{
+		param.update(grad, state, -learningRate, rule());
+	}
+
+	// Returns the update of one element, made once, so that updates don't
+	// allocate.
+	private ElementUpdate rule()
+	{
+		if (rule == null)
+			rule = (w, d, rate, s) -> {
+				s[0] += d * d;
+				return w + d * rate / (java.lang.Math.sqrt(s[0]) + eps);
+			};
+		return rule;
+	}
+}
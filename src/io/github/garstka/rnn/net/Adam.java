@@ -0,0 +1,75 @@
+package io.github.garstka.rnn.net;
+
+import io.github.garstka.rnn.math.ElementUpdate;
+import io.github.garstka.rnn.math.Matrix;
+
+// Adam: steps along a moving average of gradients, scaled by the root of a
+// moving average of squared gradients, both corrected for their zero
+// initialization. State: the two moving averages.
+//
+// Weights without a gradient in a step (e.g. the unused input columns of the
+// first layer) keep their state until they get one.
+public class Adam implements Optimizer
+{
+	private final double beta1; // First moment decay rate.
+	private final double beta2; // Second moment decay rate.
+	private final double eps; // Keeps the scale finite.
+
+	private transient ElementUpdate rule; // See rule().
+
+	public static final double defaultBeta1 = 0.9;
+	public static final double defaultBeta2 = 0.999;
+	public static final double defaultEps = 1e-8;
+
+	// Creates with the default parameters.
+	public Adam()
+	{
+		this(defaultBeta1, defaultBeta2, defaultEps);
+	}
+
+	// Creates with custom parameters. Requires beta1, beta2 in [0,1),
+	// eps > 0.
+	public Adam(double beta1, double beta2, double eps)
+	{
+		if (!(beta1 >= 0.0 && beta1 < 1.0 && beta2 >= 0.0 && beta2 < 1.0))
+			throw new IllegalArgumentException("Betas in [0,1) expected.");
+
+		if (!(eps > 0.0))
+			throw new IllegalArgumentException("eps > 0 expected.");
+
+		this.beta1 = beta1;
+		this.beta2 = beta2;
+		this.eps = eps;
+	}
+
+	@Override
+	public int stateSize()
+	{
+		return 2;
+	}
+
+	@Override
+	public void update(Matrix param, Matrix grad, Matrix[] state,
+	    double learningRate, long step)
+	{
+		// bias corrections folded into the step size
+		double rate = -learningRate
+		    * java.lang.Math.sqrt(1.0 - java.lang.Math.pow(beta2, step))
+		    / (1.0 - java.lang.Math.pow(beta1, step));
+
+		param.update(grad, state, rate, rule());
+	}
+
+	// Returns the update of one element, made once, so that updates don't
+	// allocate.
+	private ElementUpdate rule()
+	{
+		if (rule == null)
+			rule = (w, d, rate, s) -> {
+				s[0] = beta1 * s[0] + (1.0 - beta1) * d;
+				s[1] = beta2 * s[1] + (1.0 - beta2) * d * d;
+				return w + s[0] * rate / (java.lang.Math.sqrt(s[1]) + eps);
+			};
+		return rule;
+	}
+}
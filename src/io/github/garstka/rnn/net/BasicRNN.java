@@ -3,7 +3,51 @@ package io.github.garstka.rnn.net;
 // RNN that uses integer indices as inputs and outputs.
 public abstract class BasicRNN extends RNN
 {
+	private transient int[][] interleaved; // reused by interleave, per slot
+
 	// Initializes the net for this vocabulary size.
 	// Requires vocabularySize > 0.
 	public abstract void initialize(int vocabularySize);
+
+	/*** Helper ***/
+
+	// Returns the sequences of a batch step by step: the indices of step t
+	// of each sequence, then step t + 1, and so on. That's the order of the
+	// rows of a batch in RNNLayer. Requires a non-empty batch of non-empty
+	// sequences of the same length.
+	//
+	// Writes into reused array k (0 or 1), which stays valid until the next
+	// call with the same k, and is only replaced when the size changes.
+	protected int[] interleave(int[][] batch, int k)
+	{
+		if (batch == null)
+			throw new NullPointerException("Arrays can't be null.");
+
+		if (batch.length == 0)
+			throw new IllegalArgumentException(
+			    "Can't perform a pass on an empty batch.");
+
+		for (int[] sequence : batch)
+		{
+			if (sequence == null)
+				throw new NullPointerException("Arrays can't be null.");
+
+			if (sequence.length == 0 || sequence.length != batch[0].length)
+				throw new IllegalArgumentException(
+				    "Sequences in a batch must have the same, non-zero length.");
+		}
+
+		if (interleaved == null)
+			interleaved = new int[2][];
+
+		int size = batch.length * batch[0].length;
+		if (interleaved[k] == null || interleaved[k].length != size)
+			interleaved[k] = new int[size];
+
+		int[] steps = interleaved[k];
+		for (int b = 0; b < batch.length; b++)
+			for (int t = 0; t < batch[b].length; t++)
+				steps[t * batch.length + b] = batch[b][t];
+		return steps;
+	}
 }
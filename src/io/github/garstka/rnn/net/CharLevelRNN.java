@@ -16,6 +16,13 @@ public abstract class CharLevelRNN extends RNN implements CharacterSampleable
 	// Returns the alphabet, if initialized.
 	public abstract Alphabet getAlphabet();
 
+	/*** Export ***/
+
+	// Returns an inference-only copy of the net, with int8 weights. It
+	// starts from the current hidden state. Requires the net to be
+	// initialized.
+	public abstract QuantizedCharLevelRNN quantize();
+
 	/*** Sample ***/
 
 	public String sampleString(int length, String seed, double temp)
@@ -0,0 +1,278 @@
+package io.github.garstka.rnn.net;
+
+import io.github.garstka.rnn.net.exceptions.BadTrainingSetException;
+import io.github.garstka.rnn.net.exceptions.NoMoreTrainingDataException;
+import io.github.garstka.rnn.net.interfaces.GradientTrainable;
+import io.github.garstka.rnn.net.interfaces.Trainer;
+import io.github.garstka.rnn.net.interfaces.TrainingSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+// Trains a recurrent neural net on a training set from several threads in
+// lockstep, with synchronous data parallelism. The data is split into one
+// slice per thread, the last also taking the remainder, and in each step,
+// every thread computes the gradients of a replica of the net on its slice.
+// The gradients are then summed in a tree of fixed shape, averaged, and
+// applied as a single update to the weights, which the replicas share. The
+// result doesn't depend on thread timing, and with one thread, this is the
+// same as using an RNNTrainer.
+public class DataParallelTrainer implements Trainer
+{
+	// Defaults
+
+	public static final int defaultThreads = 1;
+
+	// Training
+
+	private int threads; // Training threads.
+	private int sequenceLength; // Steps to unroll the RNN for.
+	private int batchSize; // Sequences per step, per thread.
+
+	private GradientTrainable[] replica; // Net per thread, the first is the
+	                                     // net itself.
+	private RNNTrainer[] worker; // Trainer per replica, each with its own
+	                             // cursor and smooth loss.
+	private ForkJoinPool pool; // Runs the threads' work, null with one.
+	private int totalSteps; // Weight updates so far.
+
+	private boolean debugMessagesOn;
+
+	private boolean initialized;
+
+	// Work for index k of some range.
+	private interface Task
+	{
+		void run(int k) throws NoMoreTrainingDataException;
+	}
+
+	/*** Construct ***/
+
+	// Constructs without initializing
+	public DataParallelTrainer()
+	{
+		threads = defaultThreads;
+		sequenceLength = RNNTrainer.defaultSequenceLength;
+		batchSize = RNNTrainer.defaultBatchSize;
+	}
+
+	// Constructs and initializes.
+	public DataParallelTrainer(GradientTrainable net, TrainingSet data)
+	    throws BadTrainingSetException
+	{
+		this();
+		initialize(net, data);
+	}
+
+	/*** Params ***/
+
+	// Set the thread count. Training must be initialized again.
+	public void setThreads(int threads)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one thread expected.");
+
+		this.threads = threads;
+		initialized = false;
+	}
+
+	// Set a different sequence length. Training must be initialized again.
+	public void setSequenceLength(int length)
+	{
+		if (length <= 1)
+			throw new IllegalArgumentException("Illegal sequence length.");
+
+		this.sequenceLength = length;
+		initialized = false;
+	}
+
+	// Set the sequences per step, per thread. Training must be initialized
+	// again.
+	public void setBatchSize(int batchSize)
+	{
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Illegal batch size.");
+
+		this.batchSize = batchSize;
+		initialized = false;
+	}
+
+	/*** Initialize ***/
+
+	// Initializes training. Requires net, trainingSet != null, and net to be
+	// initialized.
+	public void initialize(GradientTrainable net, TrainingSet trainingSet)
+	    throws BadTrainingSetException
+	{
+		if (trainingSet == null)
+			throw new NullPointerException("Training set shouldn't be null.");
+
+		if (net == null)
+			throw new NullPointerException("Network set shouldn't be null.");
+
+		int sliceLength = trainingSet.size() / threads;
+
+		replica = new GradientTrainable[threads];
+		worker = new RNNTrainer[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			replica[i] = i == 0 ? net : net.replicate();
+			int length = i == threads - 1 // the last takes the remainder
+			    ? trainingSet.size() - i * sliceLength
+			    : sliceLength;
+			TrainingSet slice = threads == 1
+			    ? trainingSet
+			    : new TrainingSetSlice(trainingSet, i * sliceLength, length);
+
+			worker[i] = new RNNTrainer();
+			worker[i].setSequenceLength(sequenceLength);
+			worker[i].setBatchSize(batchSize);
+			worker[i].initialize(replica[i], slice);
+		}
+
+		if (pool != null)
+			pool.shutdown();
+		pool = threads > 1 ? new ForkJoinPool(threads) : null;
+
+		totalSteps = 0;
+		initialized = true;
+	}
+
+	/*** Train ***/
+
+	// Trains the network until there's no more data.
+	public void train() throws NoMoreTrainingDataException
+	{
+		train(Integer.MAX_VALUE);
+	}
+
+	// Trains the net for a few steps. Requires steps >= 0.
+	public void train(int steps) throws NoMoreTrainingDataException
+	{
+		if (!initialized)
+			throw new IllegalStateException("Training is uninitialized.");
+
+		if (steps < 0)
+			throw new IllegalArgumentException(
+			    "Non-negative step count expected.");
+
+		for (int i = 0; i < steps; i++)
+			step();
+
+		// print debug
+		if (debugMessagesOn)
+			System.out.println(
+			    "Step: " + totalSteps + ", loss: " + getSmoothLoss());
+	}
+
+	// Computes the gradients in each thread, reduces them, and updates the
+	// weights once.
+	private void step() throws NoMoreTrainingDataException
+	{
+		runAll(worker.length, k -> worker[k].step(false));
+
+		// pairwise sums: after the round with this stride, each replica at
+		// a multiple of 2 * stride holds the sum of the next 2 * stride
+		for (int stride = 1; stride < replica.length; stride *= 2)
+		{
+			int s = stride;
+			runAll((replica.length + 2 * s - 1) / (2 * s), i -> {
+				int k = 2 * s * i;
+				if (k + s < replica.length)
+					replica[k].addGradients(replica[k + s]);
+			});
+		}
+
+		replica[0].applyGradients(1.0 / replica.length);
+
+		totalSteps++;
+	}
+
+	// Runs task for each k in [0, n) on the pool, and waits for all. Throws
+	// after all of them finish, if any ran out of data.
+	private void runAll(int n, Task task) throws NoMoreTrainingDataException
+	{
+		if (pool == null || n == 1)
+		{
+			for (int k = 0; k < n; k++)
+				task.run(k);
+			return;
+		}
+
+		// the pool wraps checked exceptions, so each task records its own
+		boolean[] outOfData = new boolean[n];
+		Throwable[] failure = new Throwable[n];
+
+		List<Callable<Void>> tasks = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+		{
+			int k = i;
+			tasks.add(() -> {
+				try
+				{
+					task.run(k);
+				}
+				catch (NoMoreTrainingDataException e)
+				{
+					outOfData[k] = true;
+				}
+				catch (RuntimeException | Error e)
+				{
+					failure[k] = e;
+				}
+				return null;
+			});
+		}
+
+		pool.invokeAll(tasks); // waits for all
+
+		for (Throwable e : failure)
+		{
+			if (e instanceof RuntimeException)
+				throw (RuntimeException)e;
+			if (e instanceof Error)
+				throw (Error)e;
+		}
+
+		for (boolean out : outOfData)
+			if (out)
+				throw new NoMoreTrainingDataException();
+	}
+
+	// Reset the data pointers to the beginning.
+	public void loopAround()
+	{
+		for (RNNTrainer w : worker)
+			w.loopAround();
+	}
+
+	/*** Get ***/
+
+	// Returns the step count (weight updates).
+	public int getTotalSteps()
+	{
+		return totalSteps;
+	}
+
+	// Returns the smooth cross-entropy loss, averaged over the threads.
+	public double getSmoothLoss()
+	{
+		if (!initialized)
+			throw new IllegalStateException("Training is uninitialized.");
+
+		double loss = 0.0;
+		for (RNNTrainer w : worker)
+			loss += w.getSmoothLoss();
+		return loss / worker.length;
+	}
+
+	/*** Set ***/
+
+	// Print debug messages.
+	public void printDebug(boolean on)
+	{
+		debugMessagesOn = on;
+	}
+}
@@ -0,0 +1,275 @@
+package io.github.garstka.rnn.net;
+
+import io.github.garstka.rnn.net.exceptions.BadTrainingSetException;
+import io.github.garstka.rnn.net.exceptions.NoMoreTrainingDataException;
+import io.github.garstka.rnn.net.interfaces.Replicable;
+import io.github.garstka.rnn.net.interfaces.Trainable;
+import io.github.garstka.rnn.net.interfaces.Trainer;
+import io.github.garstka.rnn.net.interfaces.TrainingSet;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Trains a recurrent neural net on a training set from several threads at
+// once, Hogwild style. The data is split into one slice per thread, and each
+// thread trains a replica of the net on its slice with an RNNTrainer. The
+// replicas have their own hidden states and buffers, and update the shared
+// weights without locking. The first thread trains the net itself, so with
+// one thread, this is the same as using an RNNTrainer. The last slice also
+// takes the remainder of the data.
+public class HogwildTrainer implements Trainer
+{
+	// Defaults
+
+	public static final int defaultThreads = 1;
+
+	// Training
+
+	private int threads; // Training threads.
+	private int sequenceLength; // Steps to unroll the RNN for.
+	private int batchSize; // Sequences per step, per thread.
+
+	private RNNTrainer[] worker; // Trainer per thread, each with its own
+	                             // cursor and smooth loss.
+	private ExecutorService pool; // Runs the workers, null with one.
+	private volatile boolean stopping; // Ends the workers' steps early.
+
+	private boolean debugMessagesOn;
+
+	private boolean initialized;
+
+	/*** Construct ***/
+
+	// Constructs without initializing
+	public HogwildTrainer()
+	{
+		threads = defaultThreads;
+		sequenceLength = RNNTrainer.defaultSequenceLength;
+		batchSize = RNNTrainer.defaultBatchSize;
+	}
+
+	// Constructs and initializes.
+	public HogwildTrainer(Replicable net, TrainingSet data)
+	    throws BadTrainingSetException
+	{
+		this();
+		initialize(net, data);
+	}
+
+	/*** Params ***/
+
+	// Set the thread count. Training must be initialized again.
+	public void setThreads(int threads)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one thread expected.");
+
+		this.threads = threads;
+		initialized = false;
+	}
+
+	// Set a different sequence length. Training must be initialized again.
+	public void setSequenceLength(int length)
+	{
+		if (length <= 1)
+			throw new IllegalArgumentException("Illegal sequence length.");
+
+		this.sequenceLength = length;
+		initialized = false;
+	}
+
+	// Set the sequences per step, per thread. Training must be initialized
+	// again.
+	public void setBatchSize(int batchSize)
+	{
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Illegal batch size.");
+
+		this.batchSize = batchSize;
+		initialized = false;
+	}
+
+	/*** Initialize ***/
+
+	// Initializes training. Requires net, trainingSet != null, and net to be
+	// initialized.
+	public void initialize(Replicable net, TrainingSet trainingSet)
+	    throws BadTrainingSetException
+	{
+		if (trainingSet == null)
+			throw new NullPointerException("Training set shouldn't be null.");
+
+		if (net == null)
+			throw new NullPointerException("Network set shouldn't be null.");
+
+		int sliceLength = trainingSet.size() / threads;
+
+		worker = new RNNTrainer[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			Trainable replica = i == 0 ? net : net.replicate();
+			int length = i == threads - 1
+			    ? trainingSet.size() - i * sliceLength
+			    : sliceLength;
+			TrainingSet slice = threads == 1
+			    ? trainingSet
+			    : new TrainingSetSlice(trainingSet, i * sliceLength, length);
+
+			worker[i] = new RNNTrainer();
+			worker[i].setSequenceLength(sequenceLength);
+			worker[i].setBatchSize(batchSize);
+			worker[i].initialize(replica, slice);
+		}
+
+		if (pool != null)
+			pool.shutdown();
+		pool = threads > 1 ? Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "hogwild");
+			t.setDaemon(true);
+			return t;
+		}) : null;
+
+		initialized = true;
+	}
+
+	/*** Train ***/
+
+	// Trains the network until there's no more data.
+	public void train() throws NoMoreTrainingDataException
+	{
+		train(Integer.MAX_VALUE);
+	}
+
+	// Trains the net for a few steps in each thread. Requires steps >= 0.
+	// Throws after all threads stop, if any of them ran out of data.
+	public void train(int steps) throws NoMoreTrainingDataException
+	{
+		if (!initialized)
+			throw new IllegalStateException("Training is uninitialized.");
+
+		if (steps < 0)
+			throw new IllegalArgumentException(
+			    "Non-negative step count expected.");
+
+		if (worker.length == 1)
+			worker[0].train(steps);
+		else
+			trainInParallel(steps);
+
+		// print debug
+		if (debugMessagesOn)
+			System.out.println(
+			    "Step: " + getTotalSteps() + ", loss: " + getSmoothLoss());
+	}
+
+	// Runs the steps of each worker on the pool, and waits for all. If
+	// interrupted, stops the workers after their current step, and still
+	// waits for them, since they write to the shared weights.
+	private void trainInParallel(int steps) throws NoMoreTrainingDataException
+	{
+		boolean[] outOfData = new boolean[worker.length];
+		Throwable[] failure = new Throwable[worker.length];
+
+		stopping = false;
+		Future<?>[] running = new Future<?>[worker.length];
+		for (int i = 0; i < worker.length; i++)
+		{
+			int k = i;
+			running[i] = pool.submit(() -> {
+				try
+				{
+					for (int s = 0; s < steps && !stopping; s++)
+						worker[k].step(true);
+				}
+				catch (NoMoreTrainingDataException e)
+				{
+					outOfData[k] = true;
+				}
+				catch (RuntimeException | Error e)
+				{
+					failure[k] = e;
+				}
+			});
+		}
+
+		boolean interrupted = false;
+		for (Future<?> f : running)
+		{
+			while (true)
+			{
+				try
+				{
+					f.get();
+					break;
+				}
+				catch (ExecutionException e)
+				{
+					break; // recorded
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+					stopping = true; // the workers must stop first
+				}
+			}
+		}
+
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while training.");
+		}
+
+		for (Throwable e : failure)
+		{
+			if (e instanceof RuntimeException)
+				throw (RuntimeException)e;
+			if (e instanceof Error)
+				throw (Error)e;
+		}
+
+		for (boolean out : outOfData)
+			if (out)
+				throw new NoMoreTrainingDataException();
+	}
+
+	// Reset the data pointers to the beginning.
+	public void loopAround()
+	{
+		for (RNNTrainer w : worker)
+			w.loopAround();
+	}
+
+	/*** Get ***/
+
+	// Returns the step count, over all threads.
+	public int getTotalSteps()
+	{
+		int steps = 0;
+		for (RNNTrainer w : worker)
+			steps += w.getTotalSteps();
+		return steps;
+	}
+
+	// Returns the smooth cross-entropy loss, averaged over the threads.
+	public double getSmoothLoss()
+	{
+		if (!initialized)
+			throw new IllegalStateException("Training is uninitialized.");
+
+		double loss = 0.0;
+		for (RNNTrainer w : worker)
+			loss += w.getSmoothLoss();
+		return loss / worker.length;
+	}
+
+	/*** Set ***/
+
+	// Print debug messages.
+	public void printDebug(boolean on)
+	{
+		debugMessagesOn = on;
+	}
+}
@@ -0,0 +1,166 @@
+package io.github.garstka.rnn.net;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs work split into stages and chunks as a wavefront: each stage has its
+// own thread and goes through the chunks in order, and a stage starts on a
+// chunk as soon as the stage before it has finished that chunk. The calling
+// thread runs the first stage.
+final class LayerPipeline
+{
+	// Work of a stage on a chunk.
+	interface Task
+	{
+		void run(int stage, int chunk);
+	}
+
+	private final int stages;
+	private final ExecutorService threads; // run the stages but the first
+
+	private final int[] finished; // chunks done per stage, guarded by this
+	private Throwable failure; // first failure in a run, guarded by this
+
+	// Creates threads for this many stages. Requires stages >= 2.
+	LayerPipeline(int stages)
+	{
+		if (stages < 2)
+			throw new IllegalArgumentException("At least two stages expected.");
+
+		this.stages = stages;
+		this.finished = new int[stages];
+		this.threads = Executors.newFixedThreadPool(stages - 1, r -> {
+			Thread t = new Thread(r, "layer-pipeline");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	// Returns the stage count.
+	int getStages()
+	{
+		return stages;
+	}
+
+	// Runs task on each chunk of each stage, and waits for all. Rethrows the
+	// first failure, after all stages stopped.
+	void run(int chunks, Task task)
+	{
+		synchronized (this)
+		{
+			for (int s = 0; s < stages; s++)
+				finished[s] = 0;
+			failure = null;
+		}
+
+		Future<?>[] running = new Future<?>[stages - 1];
+		for (int s = 1; s < stages; s++)
+		{
+			int stage = s;
+			running[s - 1] = threads.submit(() -> runStage(stage, chunks, task));
+		}
+
+		try
+		{
+			runStage(0, chunks, task);
+		}
+		catch (RuntimeException | Error e)
+		{
+			// recorded
+		}
+
+		boolean interrupted = false;
+		for (Future<?> f : running)
+		{
+			while (true)
+			{
+				try
+				{
+					f.get();
+					break;
+				}
+				catch (ExecutionException e)
+				{
+					break; // recorded
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true; // the stages must stop first
+				}
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		Throwable first;
+		synchronized (this)
+		{
+			first = failure;
+		}
+
+		if (first instanceof RuntimeException)
+			throw (RuntimeException)first;
+		if (first instanceof Error)
+			throw (Error)first;
+	}
+
+	// Runs the chunks of a stage in order, each after the previous stage.
+	private void runStage(int stage, int chunks, Task task)
+	{
+		try
+		{
+			for (int c = 0; c < chunks; c++)
+			{
+				if (stage > 0)
+					awaitChunk(stage - 1, c);
+
+				task.run(stage, c);
+
+				synchronized (this)
+				{
+					finished[stage]++;
+					notifyAll();
+				}
+			}
+		}
+		catch (RuntimeException | Error e)
+		{
+			synchronized (this)
+			{
+				if (failure == null)
+					failure = e;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	// Waits until the stage finished the chunk, or something failed.
+	private synchronized void awaitChunk(int stage, int chunk)
+	{
+		while (finished[stage] <= chunk && failure == null)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted in a pipeline.", e);
+			}
+		}
+
+		if (failure != null)
+			throw new IllegalStateException("Another stage failed.");
+	}
+
+	// Stops the threads.
+	void shutdown()
+	{
+		threads.shutdown();
+	}
+}
@@ -0,0 +1,54 @@
+package io.github.garstka.rnn.net;
+
+import io.github.garstka.rnn.math.ElementUpdate;
+import io.github.garstka.rnn.math.Matrix;
+
+// Stochastic gradient descent with momentum. State: the velocity.
+public class Momentum implements Optimizer
+{
+	private final double mu; // Velocity decay rate.
+
+	private transient ElementUpdate rule; // See rule().
+
+	public static final double defaultMu = 0.9;
+
+	// Creates with the default parameters.
+	public Momentum()
+	{
+		this(defaultMu);
+	}
+
+	// Creates with custom parameters. Requires mu in [0,1).
+	public Momentum(double mu)
+	{
+		if (!(mu >= 0.0 && mu < 1.0))
+			throw new IllegalArgumentException("Mu in [0,1) expected.");
+
+		this.mu = mu;
+	}
+
+	@Override
+	public int stateSize()
+	{
+		return 1;
+	}
+
+	@Override
+	public void update(Matrix param, Matrix grad, Matrix[] state,
+	    double learningRate, long step)
+	{
+		param.update(grad, state, learningRate, rule());
+	}
+
+	// Returns the update of one element, made once, so that updates don't
+	// allocate.
+	private ElementUpdate rule()
+	{
+		if (rule == null)
+			rule = (w, d, rate, s) -> {
+				s[0] = mu * s[0] - rate * d;
+				return w + s[0];
+			};
+		return rule;
+	}
+}
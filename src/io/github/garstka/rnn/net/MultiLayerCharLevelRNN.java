@@ -1,5 +1,8 @@
 package io.github.garstka.rnn.net;
 
+import io.github.garstka.rnn.math.Precision;
+import io.github.garstka.rnn.net.interfaces.GradientTrainable;
+
 // Single layer character level RNN.
 public class MultiLayerCharLevelRNN extends CharLevelRNN
 {
@@ -37,6 +40,60 @@ public class MultiLayerCharLevelRNN extends CharLevelRNN
 		internal.setLearningRate(learningRate);
 	}
 
+	// Sets the weight storage precision.
+	public void setPrecision(Precision precision)
+	{
+		internal.setPrecision(precision);
+	}
+
+	// Sets the optimizer.
+	public void setOptimizer(Optimizer optimizer)
+	{
+		internal.setOptimizer(optimizer);
+	}
+
+	// Sets whether to run each layer on its own thread.
+	public void setPipelined(boolean pipelined)
+	{
+		internal.setPipelined(pipelined);
+	}
+
+	// Sets whether to update each layer's weights on another thread.
+	public void setOverlapUpdates(boolean overlapUpdates)
+	{
+		internal.setOverlapUpdates(overlapUpdates);
+	}
+
+	// Sets the rank of each Whh, or 0 for full. Must be initialized again.
+	public void setRecurrentRank(int rank)
+	{
+		internal.setRecurrentRank(rank);
+	}
+
+	// Sets the rank of each Why, or 0 for full. Must be initialized again.
+	public void setOutputRank(int rank)
+	{
+		internal.setOutputRank(rank);
+	}
+
+	// Sets whether the upper layers keep [Wxh | Whh] as one matrix.
+	public void setConcatenatedWeights(boolean concatenatedWeights)
+	{
+		internal.setConcatenatedWeights(concatenatedWeights);
+	}
+
+	// Sets the steps per checkpointed segment, or 0 to not checkpoint.
+	public void setCheckpointSteps(int checkpointSteps)
+	{
+		internal.setCheckpointSteps(checkpointSteps);
+	}
+
+	// Sets whether sampling uses sparse copies of the weights.
+	public void setSparseInference(boolean sparseInference)
+	{
+		internal.setSparseInference(sparseInference);
+	}
+
 	/*** Initialize ***/
 
 	// Initializes the net. alphabet != null.
@@ -49,6 +106,22 @@ public class MultiLayerCharLevelRNN extends CharLevelRNN
 		internal.initialize(alphabet.size());
 	}
 
+	/*** Prune ***/
+
+	// Zeroes this fraction of the smallest weights. See Prunable.
+	public void prune(double sparsity)
+	{
+		internal.prune(sparsity);
+	}
+
+	/*** Export ***/
+
+	// Returns an int8 inference-only copy of the net.
+	public QuantizedCharLevelRNN quantize()
+	{
+		return new QuantizedCharLevelRNN(alphabet, internal.quantizeLayers());
+	}
+
 	/*** Train ***/
 
 	/*
@@ -64,6 +137,52 @@ public class MultiLayerCharLevelRNN extends CharLevelRNN
 		return internal.forwardBackward(ix, iy);
 	}
 
+	/*
+	    Performs a forward-backward pass for a batch of sequences, with
+	    ix[b], iy[b] being sequence b.
+
+	    ix.length and iy.length must match, as must the lengths of all
+	    sequences. All indices must be less than the vocabulary size.
+
+	    Returns the mean cross-entropy loss per sequence.
+	*/
+	public double forwardBackward(int[][] ix, int[][] iy)
+	{
+		return internal.forwardBackward(ix, iy);
+	}
+
+	// Like forwardBackward, without updating the weights.
+	public double computeGradients(int[] ix, int[] iy)
+	{
+		return internal.computeGradients(ix, iy);
+	}
+
+	// Like forwardBackward for a batch, without updating the weights.
+	public double computeGradients(int[][] ix, int[][] iy)
+	{
+		return internal.computeGradients(ix, iy);
+	}
+
+	// Adds the gradients last computed by other, a replica of this net.
+	public void addGradients(GradientTrainable other)
+	{
+		if (other instanceof MultiLayerCharLevelRNN)
+			other = ((MultiLayerCharLevelRNN)other).internal;
+		internal.addGradients(other);
+	}
+
+	// Updates the weights with the gradients last computed, times scale.
+	public void applyGradients(double scale)
+	{
+		internal.applyGradients(scale);
+	}
+
+	// Returns a replica of the net, for training from another thread.
+	public MultiLayerRNN replicate()
+	{
+		return internal.replicate();
+	}
+
 	/*** Sample ***/
 
 	// Samples n indices, sequence seed, advance the state.
@@ -1,8 +1,17 @@
 package io.github.garstka.rnn.net;
 
 import io.github.garstka.rnn.math.Matrix;
+import io.github.garstka.rnn.math.Precision;
 import io.github.garstka.rnn.math.Random;
 import io.github.garstka.rnn.math.Math;
+import io.github.garstka.rnn.net.interfaces.GradientTrainable;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 // Multi layer RNN.
 public class MultiLayerRNN extends BasicRNN
@@ -14,7 +23,36 @@ public class MultiLayerRNN extends BasicRNN
 	// Init data
 
 	private int[] hiddenSize;
+	private int recurrentRank; // Rank of each Whh, or 0 for full.
+	private int outputRank; // Rank of each Why, or 0 for full.
 	private double learningRate;
+	private Precision precision = Precision.DOUBLE;
+	private Optimizer optimizer = new Adagrad();
+	private boolean concatenatedWeights; // [Wxh | Whh] above the first layer
+	private transient boolean sparseInference; // Sparse copies of weights.
+
+	// Pipelining
+
+	private boolean pipelined; // Run each layer on its own thread.
+	private transient LayerPipeline pipeline; // Its threads, when needed.
+
+	// Overlapping updates
+
+	private boolean overlapUpdates; // Update on another thread.
+	private transient ExecutorService updater; // The thread, when needed.
+	private transient Future<?>[] pendingUpdates; // Per layer, or null.
+
+	// Checkpointing
+
+	private int checkpointSteps; // Steps per segment, or 0 if not used.
+	private transient Matrix[][] checkpoint; // Hidden states per segment
+	                                         // start and layer.
+	private transient int[][] segmentIndices; // ix, iy of full segments,
+	                                          // then of the last one.
+
+	// Steps per pipeline chunk. At least 2, so that the products over the
+	// steps of a chunk are computed the same way as over all the steps.
+	static final int pipelineChunk = 4;
 
 	protected boolean initialized;
 
@@ -57,9 +95,40 @@ public class MultiLayerRNN extends BasicRNN
 		initialized = false;
 	}
 
+	/*
+	    Sets the rank of Whh in each layer, stored as a product of two
+	    factors, or 0 for full matrices (see RNNLayer.setRecurrentRank).
+
+	    Network must be initialized again.
+	*/
+	public void setRecurrentRank(int rank)
+	{
+		if (rank < 0)
+			throw new IllegalArgumentException("Rank can't be negative.");
+
+		this.recurrentRank = rank;
+		initialized = false;
+	}
+
+	/*
+	    Sets the rank of Why in each layer, like setRecurrentRank.
+
+	    Network must be initialized again.
+	*/
+	public void setOutputRank(int rank)
+	{
+		if (rank < 0)
+			throw new IllegalArgumentException("Rank can't be negative.");
+
+		this.outputRank = rank;
+		initialized = false;
+	}
+
 	// Sets the learning rate for each layer.
 	public void setLearningRate(double learningRate)
 	{
+		awaitUpdates();
+
 		if (layer == null)
 			this.learningRate = learningRate;
 		else
@@ -67,6 +136,119 @@ public class MultiLayerRNN extends BasicRNN
 				layer.setLearningRate(learningRate);
 	}
 
+	// Sets the weight storage precision for each layer. Converts the weights,
+	// if the net is initialized.
+	public void setPrecision(Precision precision)
+	{
+		if (precision == null)
+			throw new NullPointerException("Precision can't be null.");
+
+		awaitUpdates();
+
+		this.precision = precision;
+		if (layer != null)
+			for (RNNLayer layer : layer)
+				layer.setPrecision(precision);
+	}
+
+	// Sets the optimizer for each layer. Resets the optimizer state, if the
+	// net is initialized.
+	public void setOptimizer(Optimizer optimizer)
+	{
+		if (optimizer == null)
+			throw new NullPointerException("Optimizer can't be null.");
+
+		awaitUpdates();
+
+		this.optimizer = optimizer;
+		if (layer != null)
+			for (RNNLayer layer : layer)
+				layer.setOptimizer(optimizer);
+	}
+
+	/*
+	    Sets whether the layers above the first one keep their input and
+	    recurrent weights as one matrix (see RNNLayer.setConcatenated).
+	    The first layer has index inputs, so it keeps them apart, as do
+	    layers with a factored Whh. The results are the same either way.
+	*/
+	public void setConcatenatedWeights(boolean concatenatedWeights)
+	{
+		awaitUpdates();
+
+		this.concatenatedWeights = concatenatedWeights;
+		if (layer != null)
+			for (int i = 1; i < layer.length; i++)
+				if (recurrentRank == 0)
+					layer[i].setConcatenated(concatenatedWeights);
+	}
+
+	// Sets whether the forward passes of the layers use sparse copies of
+	// their weights (see RNNLayer.setSparseInference).
+	public void setSparseInference(boolean sparseInference)
+	{
+		awaitUpdates();
+
+		this.sparseInference = sparseInference;
+		if (layer != null)
+			for (RNNLayer layer : layer)
+				layer.setSparseInference(sparseInference);
+	}
+
+	/*
+	    Sets whether to pipeline the layers: each runs on its own thread,
+	    and works on a few steps of the forward (backward) pass as soon as
+	    the layer below (above) is done with them. The results are the
+	    same either way.
+	*/
+	public void setPipelined(boolean pipelined)
+	{
+		this.pipelined = pipelined;
+		if (!pipelined && pipeline != null)
+		{
+			pipeline.shutdown();
+			pipeline = null;
+		}
+	}
+
+	/*
+	    Sets whether to update the weights of each layer on another thread,
+	    while the layers below it are doing their backward pass. The
+	    updates finish before anything else uses the net. The results are
+	    the same either way.
+	*/
+	public void setOverlapUpdates(boolean overlapUpdates)
+	{
+		awaitUpdates();
+
+		this.overlapUpdates = overlapUpdates;
+		if (!overlapUpdates && updater != null)
+		{
+			updater.shutdown();
+			updater = null;
+		}
+	}
+
+	/*
+	    Sets the steps per checkpointed segment, or 0 to not checkpoint.
+
+	    When checkpointing, the forward pass keeps the hidden states only
+	    at the start of each segment of this many steps, and the backward
+	    pass recomputes the segments from them, last to first. This costs
+	    another forward pass, but the memory then depends on the segment
+	    length, not on the sequence length. Pipelining doesn't apply. The
+	    gradients are summed per segment, so they can differ by rounding.
+	*/
+	public void setCheckpointSteps(int checkpointSteps)
+	{
+		if (checkpointSteps < 0)
+			throw new IllegalArgumentException(
+			    "Checkpoint steps can't be negative.");
+
+		this.checkpointSteps = checkpointSteps;
+		checkpoint = null;
+	}
+
 	/*** Initialize ***/
 
 	// Initializes the net for this vocabulary size.
@@ -97,7 +279,12 @@ public class MultiLayerRNN extends BasicRNN
 
 			layer[i].setHiddenSize(hiddenSize[i]);
 			layer[i].setLearningRate(learningRate);
-
+			layer[i].setPrecision(precision);
+			layer[i].setOptimizer(optimizer);
+			layer[i].setRecurrentRank(recurrentRank);
+			layer[i].setOutputRank(outputRank);
+			layer[i].setConcatenated(
+			    concatenatedWeights && i > 0 && recurrentRank == 0);
 
 			if (i == layer.length - 1)
 				layer[i].setOutputSize(vocabularySize);
@@ -105,11 +292,71 @@ public class MultiLayerRNN extends BasicRNN
 				layer[i].setOutputSize(hiddenSize[i]);
 
 			layer[i].initialize();
+			layer[i].setSparseInference(sparseInference);
 		}
 
 		initialized = true;
 	}
 
+	// Returns a replica of the net, for training from another thread. See
+	// RNNLayer.replicate.
+	public MultiLayerRNN replicate()
+	{
+		if (!initialized)
+			throw new IllegalStateException("Network is uninitialized.");
+
+		awaitUpdates();
+
+		MultiLayerRNN replica = new MultiLayerRNN();
+		replica.hiddenSize = hiddenSize;
+		replica.recurrentRank = recurrentRank;
+		replica.outputRank = outputRank;
+		replica.learningRate = learningRate;
+		replica.precision = precision;
+		replica.optimizer = optimizer;
+		replica.concatenatedWeights = concatenatedWeights;
+		replica.pipelined = pipelined;
+		replica.overlapUpdates = overlapUpdates;
+		replica.checkpointSteps = checkpointSteps;
+
+		replica.layer = new RNNLayer[layer.length];
+		for (int i = 0; i < layer.length; i++)
+			replica.layer[i] = layer[i].replicate();
+
+		replica.initialized = true;
+		return replica;
+	}
+
+	/*** Prune ***/
+
+	// Prunes the weights of each layer (see RNNLayer.prune).
+	public void prune(double sparsity)
+	{
+		if (!initialized)
+			throw new IllegalStateException("Network is uninitialized.");
+
+		awaitUpdates();
+
+		for (RNNLayer layer : layer)
+			layer.prune(sparsity);
+	}
+
+	/*** Export ***/
+
+	// Returns int8 copies of the layers (see RNNLayer.quantize).
+	QuantizedRNNLayer[] quantizeLayers()
+	{
+		if (!initialized)
+			throw new IllegalStateException("Network is uninitialized.");
+
+		awaitUpdates();
+
+		QuantizedRNNLayer[] quantized = new QuantizedRNNLayer[layer.length];
+		for (int i = 0; i < layer.length; i++)
+			quantized[i] = layer[i].quantize();
+		return quantized;
+	}
+
 	/*** Train ***/
 
 	/*
@@ -121,6 +368,69 @@ public class MultiLayerRNN extends BasicRNN
 	    Returns the cross-entropy loss.
 	*/
 	public double forwardBackward(int[] ix, int[] iy)
+	{
+		return pass(ix, iy, true);
+	}
+
+	/*
+	    Performs a forward-backward pass for a batch of sequences, with
+	    ix[b], iy[b] being sequence b. Each timestep is then a matrix-matrix
+	    product over the batch, and the gradients are averaged.
+
+	    ix.length and iy.length must match, as must the lengths of all
+	    sequences. All indices must be less than the vocabulary size.
+
+	    Returns the mean cross-entropy loss per sequence.
+	*/
+	public double forwardBackward(int[][] ix, int[][] iy)
+	{
+		return pass(ix, iy, true);
+	}
+
+	// Like forwardBackward, without updating the weights.
+	public double computeGradients(int[] ix, int[] iy)
+	{
+		return pass(ix, iy, false);
+	}
+
+	// Like forwardBackward for a batch, without updating the weights.
+	public double computeGradients(int[][] ix, int[][] iy)
+	{
+		return pass(ix, iy, false);
+	}
+
+	// Adds the gradients last computed by other, a replica of this net.
+	public void addGradients(GradientTrainable other)
+	{
+		if (!(other instanceof MultiLayerRNN))
+			throw new IllegalArgumentException("Expected a replica.");
+
+		MultiLayerRNN replica = (MultiLayerRNN)other;
+		if (!initialized || !replica.initialized
+		    || replica.layer.length != layer.length)
+			throw new IllegalArgumentException("Expected a replica.");
+
+		awaitUpdates();
+		replica.awaitUpdates();
+
+		for (int i = 0; i < layer.length; i++)
+			layer[i].addGradients(replica.layer[i]);
+	}
+
+	// Updates the weights with the gradients last computed, times scale.
+	public void applyGradients(double scale)
+	{
+		if (!initialized)
+			throw new IllegalStateException("Network is uninitialized.");
+
+		awaitUpdates();
+
+		for (RNNLayer layer : layer)
+			layer.applyGradients(scale);
+	}
+
+	// Checks the arguments of a pass for a single sequence, and runs it.
+	private double pass(int[] ix, int[] iy, boolean update)
 	{
 		if (!initialized)
 			throw new IllegalStateException("Network is uninitialized.");
@@ -136,24 +446,306 @@ public class MultiLayerRNN extends BasicRNN
 			throw new IllegalArgumentException(
 			    "Can't perform a pass on an empty sequence.");
 
+		return pass(ix, iy, 1, update);
+	}
+
+	// Checks the arguments of a pass for a batch, and runs it.
+	private double pass(int[][] ix, int[][] iy, boolean update)
+	{
+		if (!initialized)
+			throw new IllegalStateException("Network is uninitialized.");
+
+		if (ix == null || iy == null)
+			throw new NullPointerException("Arrays can't be null.");
+
+		if (ix.length != iy.length)
+			throw new IllegalArgumentException(
+			    "Inputs and outputs must match.");
+
+		int[] x = interleave(ix, 0);
+		int[] y = interleave(iy, 1);
+
+		if (x.length != y.length)
+			throw new IllegalArgumentException(
+			    "Inputs and outputs must match.");
+
+		return pass(x, y, ix.length, update);
+	}
+
+	// Computes the gradients for batchSize interleaved sequences, and
+	// updates the weights of each layer as soon as it has them, if update.
+	private double pass(int[] ix, int[] iy, int batchSize, boolean update)
+	{
+		awaitUpdates();
+
+		if (checkpointSteps > 0 && ix.length / batchSize > checkpointSteps)
+			return checkpointedPass(ix, iy, batchSize, update);
+
+		if (pipelined && layer.length > 1)
+			return pipelinedPass(ix, iy, batchSize, update);
+
 		// forward pass
-		layer[0].forward(layer[0].ixTox(ix));
+		layer[0].forward(ix, batchSize);
 		for (int i = 1; i < layer.length; i++)
-			layer[i].forward(layer[i - 1].gety());
+			layer[i].forward(layer[i - 1].gety(), batchSize);
 
 		// calculate loss and get dy
 		double loss = layer[layer.length - 1].getLoss(iy);
 
 		// last layer backward pass
-		layer[layer.length - 1].backward(layer[layer.length - 1].getdy(iy));
+		layer[layer.length - 1].computeGradients(
+		    layer[layer.length - 1].getdy());
+		if (update)
+			update(layer.length - 1);
 
 		// rest of the backward pass
 		for (int i = layer.length - 2; i >= 0; i--)
-			layer[i].backward(layer[i + 1].getdx());
+		{
+			layer[i].computeGradients(layer[i + 1].getdx());
+			if (update)
+				update(i);
+		}
+
+		return loss;
+	}
+
+	// Like pass, with the layers pipelined. Each stage updates the weights
+	// of its layer, while the stages below are still going.
+	private double pipelinedPass(
+	    int[] ix, int[] iy, int batchSize, boolean update)
+	{
+		// split the steps into chunks of at least pipelineChunk steps
+		int steps = ix.length / batchSize;
+		int chunks = java.lang.Math.max(1, steps / pipelineChunk);
+		int[] bound = new int[chunks + 1];
+		for (int c = 0; c <= chunks; c++)
+			bound[c] = c * steps / chunks;
+
+		if (pipeline == null || pipeline.getStages() != layer.length)
+		{
+			if (pipeline != null)
+				pipeline.shutdown();
+			pipeline = new LayerPipeline(layer.length);
+		}
+
+		// forward pass, layer i on a chunk after layer i - 1
+		layer[0].beginForward(ix, batchSize);
+		for (int i = 1; i < layer.length; i++)
+			layer[i].beginForward(layer[i - 1].gety(), batchSize);
+
+		pipeline.run(chunks, (i, c) -> {
+			layer[i].forwardSteps(bound[c], bound[c + 1]);
+			if (c == chunks - 1)
+				layer[i].endForward();
+		});
+
+		// calculate loss and get dy
+		int last = layer.length - 1;
+		double loss = layer[last].getLoss(iy);
+
+		// backward pass, from the last layer and chunk
+		layer[last].beginBackward(layer[last].getdy(), false);
+		for (int i = last - 1; i >= 0; i--)
+			layer[i].beginBackward(layer[i + 1].getdx(), false);
+
+		pipeline.run(chunks, (s, c) -> {
+			RNNLayer l = layer[last - s];
+			int k = chunks - 1 - c;
+			l.backwardSteps(bound[k], bound[k + 1]);
+			if (k == 0)
+			{
+				l.endBackward(false);
+				if (update)
+					l.applyGradients(1.0);
+			}
+		});
+
+		return loss;
+	}
+
+	// Like pass, checkpointed. See setCheckpointSteps.
+	private double checkpointedPass(
+	    int[] ix, int[] iy, int batchSize, boolean update)
+	{
+		int steps = ix.length / batchSize;
+		int segments = (steps + checkpointSteps - 1) / checkpointSteps;
+		ensureCheckpoints(segments + 1, batchSize);
+
+		// forward pass, keeping the hidden states at the segment starts
+		double loss = 0.0;
+		for (int s = 0; s < segments; s++)
+		{
+			for (int i = 0; i < layer.length; i++)
+				layer[i].copyHiddenState(checkpoint[s][i]);
+			loss += segmentForward(ix, iy, batchSize, s);
+		}
+
+		// and at the end, to continue from
+		for (int i = 0; i < layer.length; i++)
+			layer[i].copyHiddenState(checkpoint[segments][i]);
+
+		// backward pass, from the last segment, each but the last one
+		// recomputed from its checkpoint first
+		int last = layer.length - 1;
+		for (int s = segments - 1; s >= 0; s--)
+		{
+			boolean continued = s < segments - 1;
+			if (continued)
+			{
+				for (int i = 0; i < layer.length; i++)
+					layer[i].restoreHiddenState(checkpoint[s][i]);
+				segmentForward(ix, iy, batchSize, s);
+			}
+
+			for (int i = last; i >= 0; i--)
+			{
+				layer[i].beginBackward(i == last ? layer[last].getdy()
+				                                 : layer[i + 1].getdx(),
+				    continued);
+				layer[i].backwardSteps(0, segmentLength(steps, s));
+				layer[i].endBackward(continued);
+			}
+		}
+
+		for (int i = 0; i < layer.length; i++)
+			layer[i].restoreHiddenState(checkpoint[segments][i]);
+
+		if (update)
+			for (int i = last; i >= 0; i--)
+				update(i);
 
 		return loss;
 	}
 
+	// Runs the forward pass on segment s, and returns its loss.
+	private double segmentForward(int[] ix, int[] iy, int batchSize, int s)
+	{
+		int steps = ix.length / batchSize;
+		int from = s * checkpointSteps * batchSize;
+		int to = from + segmentLength(steps, s) * batchSize;
+
+		// the last segment can be shorter, it gets its own arrays
+		int k = (s + 1) * checkpointSteps < steps ? 0 : 2;
+
+		layer[0].forward(segmentIndices(ix, from, to, k), batchSize);
+		for (int i = 1; i < layer.length; i++)
+			layer[i].forward(layer[i - 1].gety(), batchSize);
+
+		return layer[layer.length - 1].getLoss(
+		    segmentIndices(iy, from, to, k + 1));
+	}
+
+	// Copies a[from, to) into reused array k of segmentIndices, and returns
+	// it. The first layer keeps the one with its inputs until its backward
+	// pass, which comes before the next copy of that segment's inputs.
+	private int[] segmentIndices(int[] a, int from, int to, int k)
+	{
+		if (segmentIndices == null)
+			segmentIndices = new int[4][];
+
+		if (segmentIndices[k] == null || segmentIndices[k].length != to - from)
+			segmentIndices[k] = new int[to - from];
+
+		System.arraycopy(a, from, segmentIndices[k], 0, to - from);
+		return segmentIndices[k];
+	}
+
+	// Returns the step count of segment s of a sequence.
+	private int segmentLength(int steps, int s)
+	{
+		int from = s * checkpointSteps;
+		return from + checkpointSteps <= steps ? checkpointSteps
+		                                       : steps - from;
+	}
+
+	// Makes sure there are this many checkpoints for the batch size, and
+	// that the hidden states are for it.
+	private void ensureCheckpoints(int count, int batchSize)
+	{
+		for (RNNLayer l : layer)
+			l.ensureHiddenState(batchSize);
+
+		if (checkpoint != null && checkpoint.length >= count
+		    && checkpoint[0][0].getM() == batchSize)
+			return;
+
+		checkpoint = new Matrix[count][layer.length];
+		for (int s = 0; s < count; s++)
+			for (int i = 0; i < layer.length; i++)
+				checkpoint[s][i] = Matrix.zeros(batchSize, hiddenSize[i]);
+	}
+
+	// Updates the weights of layer i with its gradients, on the update
+	// thread if overlapping updates.
+	private void update(int i)
+	{
+		if (!overlapUpdates)
+		{
+			layer[i].applyGradients(1.0);
+			return;
+		}
+
+		if (updater == null)
+			updater = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "layer-updates");
+				t.setDaemon(true);
+				return t;
+			});
+
+		if (pendingUpdates == null || pendingUpdates.length != layer.length)
+			pendingUpdates = new Future<?>[layer.length];
+
+		RNNLayer l = layer[i];
+		pendingUpdates[i] = updater.submit(() -> l.applyGradients(1.0));
+	}
+
+	// Waits for the pending weight updates. Rethrows the failure of the
+	// first one that failed.
+	private void awaitUpdates()
+	{
+		if (pendingUpdates == null)
+			return;
+
+		RuntimeException failure = null;
+		boolean interrupted = false;
+		for (int i = 0; i < pendingUpdates.length; i++)
+		{
+			while (pendingUpdates[i] != null)
+			{
+				try
+				{
+					pendingUpdates[i].get();
+					pendingUpdates[i] = null;
+				}
+				catch (ExecutionException e)
+				{
+					pendingUpdates[i] = null;
+					if (failure == null)
+						failure = e.getCause() instanceof RuntimeException
+						    ? (RuntimeException)e.getCause()
+						    : new RuntimeException(e.getCause());
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true; // the weights must be consistent
+				}
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		if (failure != null)
+			throw failure;
+	}
+
+	// Waits for the pending weight updates before saving.
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		awaitUpdates();
+		out.defaultWriteObject();
+	}
+
 	/*** Sample ***/
 
 	public int[] sampleIndices(int n, int[] seed, double temp)
@@ -166,6 +758,8 @@ public class MultiLayerRNN extends BasicRNN
 		if (!initialized)
 			throw new IllegalStateException("Network is uninitialized.");
 
+		awaitUpdates();
+
 		if (n < 0)
 			throw new IllegalArgumentException("Non-negative length expected.");
 
@@ -187,7 +781,7 @@ public class MultiLayerRNN extends BasicRNN
 		int[] sampled = new int[n];
 
 		// Seed forward pass.
-		layer[0].forward(layer[0].ixTox(seed));
+		layer[0].forward(seed);
 		for (int i = 1; i < layer.length; i++)
 			layer[i].forward(layer[i - 1].gety());
 
@@ -197,17 +791,15 @@ public class MultiLayerRNN extends BasicRNN
 
 		// Sample.
 
-		Matrix seedVec = layer[0].ixTox(sampled[0]);
 		for (int t = 1; t < n; t++)
 		{
-			layer[0].forward(seedVec);
+			layer[0].forward(sampled[t - 1]);
 			for (int i = 1; i < layer.length; i++)
 				layer[i].forward(layer[i - 1].gety());
 
 			// choose next, use the temperature
 			sampled[t] = Random.randomChoice(
 			    layer[layer.length - 1].getProbabilities(temp));
-			seedVec = layer[0].ixTox(sampled[t]);
 		}
 
 		if (!advance)
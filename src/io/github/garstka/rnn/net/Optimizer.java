@@ -0,0 +1,22 @@
+package io.github.garstka.rnn.net;
+
+import io.github.garstka.rnn.math.Matrix;
+
+import java.io.Serializable;
+
+// Updates weights with their gradients, once per training step.
+//
+// The optimizer only holds hyperparameters, so it can be shared between
+// layers. The state it needs per weight is kept by the caller in matrices
+// shaped like the weights, so a view of the weights (e.g. one column) is
+// updated together with the matching views of its state.
+public interface Optimizer extends Serializable
+{
+	// Returns the number of state matrices per weight matrix.
+	int stateSize();
+
+	// Updates param with its gradient grad, and changes its state, in one
+	// pass over the elements. step is the number of this update, from 1.
+	void update(Matrix param, Matrix grad, Matrix[] state, double learningRate,
+	    long step);
+}
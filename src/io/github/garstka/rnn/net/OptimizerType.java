@@ -0,0 +1,26 @@
+package io.github.garstka.rnn.net;
+
+// The optimizers, by name.
+public enum OptimizerType
+{
+	ADAGRAD,
+	RMSPROP,
+	ADAM,
+	MOMENTUM; // SGD with momentum
+
+	// Returns a new optimizer of this type with the default parameters.
+	public Optimizer create()
+	{
+		switch (this)
+		{
+			case RMSPROP:
+				return new RMSProp();
+			case ADAM:
+				return new Adam();
+			case MOMENTUM:
+				return new Momentum();
+			default:
+				return new Adagrad();
+		}
+	}
+}
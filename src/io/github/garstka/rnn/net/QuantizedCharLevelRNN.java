@@ -0,0 +1,134 @@
+package io.github.garstka.rnn.net;
+
+import io.github.garstka.rnn.math.Matrix;
+import io.github.garstka.rnn.math.Random;
+import io.github.garstka.rnn.net.exceptions.CharacterNotInAlphabetException;
+import io.github.garstka.rnn.net.interfaces.CharacterSampleable;
+import io.github.garstka.rnn.net.interfaces.IntegerSampleable;
+
+import java.io.Serializable;
+
+// Inference-only char-level RNN, exported from a trained one by
+// CharLevelRNN.quantize(). The weights are stored as int8 with a scale per
+// row. The activations are stored as floating point, but each product
+// rounds its input vector to int8 too, with its own scale, so that it's
+// summed as ints. Takes an eighth of the memory of double weights, and a
+// quarter of float ones. Samples like the net it came from, up to the
+// rounding of both.
+public class QuantizedCharLevelRNN
+    implements CharacterSampleable, IntegerSampleable, Serializable
+{
+	private final Alphabet alphabet;
+	private final QuantizedRNNLayer[] layer; // from the input up
+
+	// Constructs from the quantized layers of a net with this alphabet.
+	QuantizedCharLevelRNN(Alphabet alphabet, QuantizedRNNLayer[] layer)
+	{
+		if (alphabet == null)
+			throw new NullPointerException("Alphabet can't be null.");
+
+		if (layer == null || layer.length == 0)
+			throw new IllegalArgumentException("At least one layer expected.");
+
+		this.alphabet = alphabet;
+		this.layer = layer;
+	}
+
+	/*** Sample ***/
+
+	public int[] sampleIndices(int n, int[] seed, double temp)
+	{
+		return sampleIndices(n, seed, temp, true);
+	}
+
+	public int[] sampleIndices(int n, int[] seed, double temp, boolean advance)
+	{
+		if (n < 0)
+			throw new IllegalArgumentException("Non-negative length expected.");
+
+		if (seed == null)
+			throw new NullPointerException("Non-null seed expected.");
+
+		if (seed.length == 0)
+			throw new IllegalArgumentException("Non-empty seed expected.");
+
+		Matrix[] savedState = null;
+
+		if (!advance)
+		{
+			savedState = new Matrix[layer.length];
+			for (int i = 0; i < layer.length; i++)
+				savedState[i] = layer[i].saveHiddenState();
+		}
+
+		int[] sampled = new int[n];
+
+		// Seed forward pass.
+		for (int ix : seed)
+			forward(ix);
+
+		// Sample, use the temperature.
+		for (int t = 0; t < n; t++)
+		{
+			if (t > 0)
+				forward(sampled[t - 1]);
+
+			sampled[t] = Random.randomChoice(
+			    layer[layer.length - 1].getProbabilities(temp));
+		}
+
+		if (!advance)
+		{
+			for (int i = 0; i < layer.length; i++)
+				layer[i].restoreHiddenState(savedState[i]);
+		}
+
+		return sampled;
+	}
+
+	// Steps each layer with the output of the one below.
+	private void forward(int ix)
+	{
+		layer[0].forward(ix);
+		for (int i = 1; i < layer.length; i++)
+			layer[i].forward(layer[i - 1].gety());
+	}
+
+	public String sampleString(int length, String seed, double temp)
+	    throws CharacterNotInAlphabetException
+	{
+		return sampleString(length, seed, temp, true);
+	}
+
+	public String sampleString(int length, String seed, double temp,
+	    boolean advance) throws CharacterNotInAlphabetException
+	{
+		if (length < 0)
+			throw new IllegalArgumentException("Non-negative length expected.");
+
+		if (seed == null)
+			throw new NullPointerException("Non-null seed expected.");
+
+		if (seed.length() == 0)
+			throw new IllegalArgumentException("Non-empty seed expected.");
+
+		int[] sampledIndices = sampleIndices(
+		    length, alphabet.charsToIndices(seed), temp, advance);
+
+		return new String(alphabet.indicesToChars(sampledIndices));
+	}
+
+	/*** Get ***/
+
+	// Returns the alphabet.
+	public Alphabet getAlphabet()
+	{
+		return alphabet;
+	}
+
+	// Returns the vocabulary size (max index + 1).
+	public int getVocabularySize()
+	{
+		return layer[0].getInputSize();
+	}
+}
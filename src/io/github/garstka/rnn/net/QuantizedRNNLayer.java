@@ -0,0 +1,141 @@
+package io.github.garstka.rnn.net;
+
+import io.github.garstka.rnn.math.Matrix;
+import io.github.garstka.rnn.math.Precision;
+import io.github.garstka.rnn.math.QuantizedMatrix;
+
+import java.io.Serializable;
+
+// Inference-only copy of an RNNLayer, with int8 weights (see
+// QuantizedMatrix) and float biases. Takes one input per step, either an
+// index or a vector, and keeps the hidden state of one sequence. The
+// activations are kept as floating point, but each product with the weights
+// rounds its input to int8 first (see Matrix.dotNTInto). A step doesn't
+// allocate.
+final class QuantizedRNNLayer implements Serializable
+{
+	private final QuantizedMatrix Wxh, Whh, Why; // weights
+	private final Matrix bh, by; // biases, as floats
+
+	private Matrix h; // hidden state, 1 x hidden
+
+	// Buffers
+
+	private transient Matrix xh; // input projection
+	private transient Matrix hNext; // next hidden state
+	private transient Matrix y; // unnormalized output probabilities
+	private transient double[] p; // output probabilities
+	private transient byte[] qx; // an input rounded to int8
+
+	// Quantizes the weights and copies the hidden state (a row vector).
+	QuantizedRNNLayer(
+	    Matrix Wxh, Matrix Whh, Matrix Why, Matrix bh, Matrix by, Matrix h)
+	{
+		this.Wxh = QuantizedMatrix.fromDense(Wxh);
+		this.Whh = QuantizedMatrix.fromDense(Whh);
+		this.Why = QuantizedMatrix.fromDense(Why);
+		this.bh = bh.toPrecision(Precision.FLOAT);
+		this.by = by.toPrecision(Precision.FLOAT);
+		this.h = new Matrix(h);
+	}
+
+	// Returns the input size.
+	int getInputSize()
+	{
+		return Wxh.getN();
+	}
+
+	// Steps with the input at this index. Requires 0 <= ix < input size.
+	void forward(int ix)
+	{
+		if (ix < 0 || ix >= Wxh.getN())
+			throw new IllegalArgumentException(
+			    "Illegal index passed as argument.");
+
+		ensureBuffers();
+		Matrix.columnInto(Wxh, ix, xh);
+		step();
+	}
+
+	// Steps with the input x, a row vector of the input size.
+	void forward(Matrix x)
+	{
+		if (x.getM() != 1 || x.getN() != Wxh.getN())
+			throw new IllegalArgumentException(
+			    "Input vector has the wrong size.");
+
+		ensureBuffers();
+		Matrix.dotNTInto(x, Wxh, xh, qx);
+		step();
+	}
+
+	// Finds the new hidden state and the output, given xh = Wxh x.
+	private void step()
+	{
+		xh.add(bh);
+
+		Matrix.tanhCellInto(Whh, h, xh, hNext, qx);
+		Matrix old = h; // swap
+		h = hNext;
+		hNext = old;
+
+		Matrix.dotNTInto(h, Why, y, qx).add(by);
+	}
+
+	// Makes the buffers, after constructing or deserializing.
+	private void ensureBuffers()
+	{
+		if (y != null)
+			return;
+
+		xh = Matrix.zeros(1, Whh.getM());
+		hNext = Matrix.zeros(1, Whh.getM());
+		y = Matrix.zeros(1, Why.getM());
+		p = new double[Why.getM()];
+		qx = new byte[java.lang.Math.max(Wxh.getN(), Whh.getN())];
+	}
+
+	// Returns y: the unnormalized probabilities of the last step.
+	Matrix gety()
+	{
+		if (y == null)
+			throw new IllegalStateException("No step was taken.");
+
+		return y;
+	}
+
+	// Returns the probabilities of the last step, with this temperature,
+	// in an array reused by the next call.
+	double[] getProbabilities(double temp)
+	{
+		Matrix y = gety();
+
+		// softmax, shifted by the largest element to stay finite
+		double max = Double.NEGATIVE_INFINITY;
+		for (int j = 0; j < p.length; j++)
+			max = java.lang.Math.max(max, y.at(0, j));
+
+		double sum = 0.0;
+		for (int j = 0; j < p.length; j++)
+		{
+			p[j] = java.lang.Math.exp((y.at(0, j) - max) / temp);
+			sum += p[j];
+		}
+
+		for (int j = 0; j < p.length; j++)
+			p[j] /= sum;
+		return p;
+	}
+
+	// Saves the hidden state before sampling.
+	Matrix saveHiddenState()
+	{
+		return new Matrix(h);
+	}
+
+	// Restores the hidden state after sampling.
+	void restoreHiddenState(Matrix h)
+	{
+		Matrix.copyInto(h, this.h);
+	}
+}
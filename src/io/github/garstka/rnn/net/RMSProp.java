@@ -0,0 +1,61 @@
+package io.github.garstka.rnn.net;
+
+import io.github.garstka.rnn.math.ElementUpdate;
+import io.github.garstka.rnn.math.Matrix;
+
+// RMSProp: scales the steps by the root of a moving average of squared
+// gradients. State: the moving average.
+public class RMSProp implements Optimizer
+{
+	private final double decay; // Moving average decay rate.
+	private final double eps; // Keeps the scale finite.
+
+	private transient ElementUpdate rule; // See rule().
+
+	public static final double defaultDecay = 0.9;
+	public static final double defaultEps = 1e-8;
+
+	// Creates with the default parameters.
+	public RMSProp()
+	{
+		this(defaultDecay, defaultEps);
+	}
+
+	// Creates with custom parameters. Requires decay in [0,1), eps > 0.
+	public RMSProp(double decay, double eps)
+	{
+		if (!(decay >= 0.0 && decay < 1.0))
+			throw new IllegalArgumentException("Decay in [0,1) expected.");
+
+		if (!(eps > 0.0))
+			throw new IllegalArgumentException("eps > 0 expected.");
+
+		this.decay = decay;
+		this.eps = eps;
+	}
+
+	@Override
+	public int stateSize()
+	{
+		return 1;
+	}
+
+	@Override
+	public void update(Matrix param, Matrix grad, Matrix[] state,
+	    double learningRate, long step)
+	{
+		param.update(grad, state, -learningRate, rule());
+	}
+
+	// Returns the update of one element, made once, so that updates don't
+	// allocate.
+	private ElementUpdate rule()
+	{
+		if (rule == null)
+			rule = (w, d, rate, s) -> {
+				s[0] = decay * s[0] + (1.0 - decay) * d * d;
+				return w + d * rate / (java.lang.Math.sqrt(s[0]) + eps);
+			};
+		return rule;
+	}
+}
@@ -1,12 +1,14 @@
 package io.github.garstka.rnn.net;
 
 import io.github.garstka.rnn.net.interfaces.IntegerSampleable;
-import io.github.garstka.rnn.net.interfaces.Trainable;
+import io.github.garstka.rnn.net.interfaces.GradientTrainable;
+import io.github.garstka.rnn.net.interfaces.Prunable;
 
 import java.io.Serializable;
 
 // A recurrent neural network.
-public abstract class RNN implements IntegerSampleable, Trainable, Serializable
+public abstract class RNN
+    implements IntegerSampleable, GradientTrainable, Prunable, Serializable
 {
 	/*** Get ***/
 
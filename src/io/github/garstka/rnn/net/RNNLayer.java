@@ -2,10 +2,14 @@ package io.github.garstka.rnn.net;
 
 import io.github.garstka.rnn.math.Math;
 import io.github.garstka.rnn.math.Matrix;
+import io.github.garstka.rnn.math.Precision;
 import io.github.garstka.rnn.math.Random;
+import io.github.garstka.rnn.math.SparseMatrix;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 // An RNN Layer with support for multi-layer networks.
 public class RNNLayer implements Serializable
@@ -13,12 +17,16 @@ public class RNNLayer implements Serializable
 	// Hyperparameters
 
 	private double learningRate; // Backpropagation parameter.
+	private Optimizer optimizer = new Adagrad(); // Weight updates.
+	private Precision precision = Precision.DOUBLE; // Weight storage.
 
 	// Dimensions
 
 	private int inputSize; // input vector size
 	private int hiddenSize; // hidden state size
 	private int outputSize; // input vector size
+	private int recurrentRank; // rank of Whh if factored, or 0
+	private int outputRank; // rank of Why if factored, or 0
 
 	// Defaults
 
@@ -32,29 +40,111 @@ public class RNNLayer implements Serializable
 	private Matrix Wxh; // input layer weights
 	private Matrix Whh; // hidden layer weights
 	private Matrix Why; // output layer weights
+	private Matrix Uhh, Vhh; // or Whh = Uhh Vhh, if factored
+	private Matrix Uhy, Vhy; // or Why = Uhy Vhy, if factored
 	private Matrix bh; // hidden bias
 	private Matrix by; // output bias
 
-	private Matrix h; // last hidden state
+	private Matrix h; // last hidden states, one row per sequence
 
-	// Training state
+	private boolean concatenated; // Wxh and Whh are views of Wcat
+	private Matrix Wcat; // [Wxh | Whh], if concatenated
+	private Matrix[] stateWcat; // its optimizer state, if concatenated
 
-	private Matrix gWxh; // gradient descent params: input layer
-	private Matrix gWhh; // gradient descent params: hidden layer
-	private Matrix gWhy; // gradient descent params: output layer
-	private Matrix gbh; // gradient descent params: hidden bias
-	private Matrix gby; // gradient descent params: output bias
+	// Training state
 
-	private Matrix[] xAt; // input vectors through time
-	private Matrix[] hAt; // hidden state vectors through time
-	private Matrix[] yAt; // unnormalized output probability vectors through
-	// time
-	private Matrix[] pAt; // normalized output probability vectors through time
-	private Matrix[] dxAt; // output gradient from a backwards pass
+	private Matrix[][] state; // optimizer state per weight matrix (weights())
+	private AtomicLong steps; // weight updates so far, shared by replicas
+	private BitSet[] pruned; // pruned elements per weight matrix, or null
+
+	// Sparse inference
+
+	private transient boolean sparseInference; // Use sparse copies.
+	private transient SparseMatrix sparseWxh, sparseWhh, sparseWhy; // or null
+
+	// Sequences through time are kept as matrices with a block of B rows per
+	// step, one row per sequence in the batch: block t - 1 holds step t,
+	// except in H, where block t holds step t. With a single sequence, the
+	// blocks are rows.
+
+	// Buffers reused between passes (not a part of the snapshot). They're
+	// views of the first rows of a workspace, which only grows, so passes
+	// of any length up to the longest one so far don't allocate. Only the
+	// buffers a layer's role needs are created: the input layer (with
+	// index inputs) has no dX, and only the output layer (given targets in
+	// getLoss) has dY. A hidden layer just leaves Y for the next one.
+
+	private transient Matrix wsXH, wsH, wsY; // forward workspace
+	private transient Matrix wsS; // [x | h], if concatenated, around wsH
+	private transient Matrix wsZh, wsZy; // factored workspace
+	private transient Matrix wsGh, wsGy;
+	private transient Matrix wsdY, wsdHy, wsdH, wsdHRaw, wsdX, wsOnes;
+	private transient Matrix wsdhNext; // backward workspace
+	private transient int workspaceBatch; // sequences it has room for
+	private transient int stepsBatch; // block size of xhAt, hAt
+	private transient int backwardStepsBatch; // of dhyAt, dhAt, dhRawAt
+
+	private transient Matrix X; // input vectors (given, not owned)
+	private transient int[] ixAt; // or input indices, one per row of X
+	private transient Matrix XH; // input projections Wxh x[t] + bh
+	private transient Matrix H; // hidden states, with the initial ones at 0
+	private transient Matrix Y; // unnormalized output probabilities
+
+	private transient Matrix Hprev; // blocks 0..T-1 of H
+	private transient Matrix Hcur; // blocks 1..T of H
+	private transient Matrix S; // rows [x[t] | h[t - 1]], if concatenated
+	private transient Matrix SX; // the x half of S
+	private transient Matrix Zh; // rows Vhh h[t - 1], if factored
+	private transient Matrix Zy; // rows Vhy h[t], if factored
+	private transient Matrix[] zhAt; // the blocks of Zh at t
+
+	private transient Matrix[] xhAt; // the blocks of XH, H at t
+	private transient Matrix[] hAt;
+	private transient Matrix[] xhRows; // the rows of XH, with index inputs
+	private transient Matrix[] yRows; // the rows of Y, in the output layer
+
+	private transient Matrix dY; // output gradients from getLoss
+	private transient Matrix dYIn; // gradients to backpropagate (given)
+	private transient boolean haveDy; // dY is for the last forward pass
+	private transient Matrix dHy; // their contribution Why^T dy[t] to dh
+	private transient Matrix dH; // gradients of the hidden states
+	private transient Matrix dHRaw; // before the tanh nonlinearity
+	private transient Matrix dX; // input gradients from a backward pass
+	private transient Matrix Gh; // rows Uhh^T dhraw[t], if factored
+	private transient Matrix Gy; // rows Uhy^T dy[t], if factored
+	private transient Matrix[] ghAt; // the blocks of Gh at t
+	private transient Matrix ones; // T B ones, for sums over time and batch
+
+	private transient Matrix[] dhyAt; // the blocks of dHy, dH, dHRaw at t
+	private transient Matrix[] dhAt;
+	private transient Matrix[] dhRawAt;
+	private transient Matrix[] dyRows; // the rows of dY, in the output layer
+	private transient Matrix[] dhRawRows; // of dHRaw, with index inputs
+
+	private transient Matrix dWxh; // gradient accumulator, always double
+	private transient Matrix dWcat; // [dWxh | dWhh], if concatenated
+
+	private transient boolean[] dirty; // columns of dWxh with a gradient
+	private transient int[] dirtyCols; // their indices
+	private transient int dirtyCount; // their count, or -1 for all columns
+
+	private transient Matrix dhNext; // gradients from the next time step
+
+	private transient Matrix[] params; // weights()
+	private transient Matrix[] dparams; // their gradients, always double
+	private transient Matrix[] dsegment; // of a segment, to add to dparams
+	private transient Matrix dsegmentWcat; // and to dWcat
+	private transient Matrix[] WxhCols; // the columns of Wxh, dWxh, and
+	private transient Matrix[] dWxhCols; // state[0] per column, as views
+	private transient Matrix[][] stateCols;
+	private transient boolean haveGradients; // from the last backward pass
+
+	private static final double clip_a = -5.0; // gradient clipping bound
 
 	private int lastSequenceLength; // Number of steps in the last forward pass
 	                                // (must match the steps for the backward
 	                                // pass)
+	private int lastBatchSize; // Number of sequences in the last forward pass
 
 	private boolean initialized;
 
@@ -111,76 +201,290 @@ public class RNNLayer implements Serializable
 		this.outputSize = outputSize;
 	}
 
+	/*
+	    Sets the rank of Whh, which is then stored as the product Uhh Vhh of
+	    hidden x rank and rank x hidden factors, or 0 for a full matrix.
+	    Below half the hidden size, this takes fewer weights and
+	    multiply-adds per step.
+	*/
+	public void setRecurrentRank(int rank)
+	{
+		initialized = false;
+
+		if (rank < 0)
+			throw new IllegalArgumentException("Illegal rank.");
+
+		this.recurrentRank = rank;
+	}
+
+	// Sets the rank of Why, like setRecurrentRank: Why = Uhy Vhy.
+	public void setOutputRank(int rank)
+	{
+		initialized = false;
+
+		if (rank < 0)
+			throw new IllegalArgumentException("Illegal rank.");
+
+		this.outputRank = rank;
+	}
+
 	public void setLearningRate(double learningRate)
 	{
 		this.learningRate = learningRate;
 	}
 
-	// Initialize the net with random weights.
-	public void initialize()
+	// Sets the optimizer. Resets the optimizer state, if the layer is
+	// already initialized.
+	public void setOptimizer(Optimizer optimizer)
 	{
-		if (inputSize <= 0 || hiddenSize <= 0 || outputSize <= 0)
-			throw new IllegalArgumentException("Illegal layer sizes.");
+		if (optimizer == null)
+			throw new NullPointerException("Optimizer can't be null.");
 
-		// create weight matrices
+		this.optimizer = optimizer;
 
-		double scale = 0.1;
+		if (initialized)
+			resetState();
+	}
 
-		Wxh = Random.randn(hiddenSize, inputSize).mul(scale);
-		Whh = Random.randn(hiddenSize, hiddenSize).mul(scale);
-		Why = Random.randn(outputSize, hiddenSize).mul(scale);
-		bh = Matrix.zeros(hiddenSize);
-		by = Matrix.zeros(outputSize);
+	// Sets the storage precision of the weights and the optimizer state.
+	// Converts them, if the layer is already initialized. Activations and
+	// gradients stay double.
+	public void setPrecision(Precision precision)
+	{
+		if (precision == null)
+			throw new NullPointerException("Precision can't be null.");
 
-		gWxh = Matrix.zerosLike(Wxh);
-		gWhh = Matrix.zerosLike(Whh);
-		gWhy = Matrix.zerosLike(Why);
-		gbh = Matrix.zerosLike(bh);
-		gby = Matrix.zerosLike(by);
+		this.precision = precision;
 
-		h = Random.randn(hiddenSize);
+		if (!initialized)
+			return;
+
+		Wxh = Wxh.toPrecision(precision);
+		bh = bh.toPrecision(precision);
+		by = by.toPrecision(precision);
+		if (Vhh == null)
+			Whh = Whh.toPrecision(precision);
+		else
+		{
+			Uhh = Uhh.toPrecision(precision);
+			Vhh = Vhh.toPrecision(precision);
+		}
+		if (Vhy == null)
+			Why = Why.toPrecision(precision);
+		else
+		{
+			Uhy = Uhy.toPrecision(precision);
+			Vhy = Vhy.toPrecision(precision);
+		}
 
-		initialized = true;
+		for (Matrix[] paramState : state)
+			for (int k = 0; k < paramState.length; ++k)
+				paramState[k] = paramState[k].toPrecision(precision);
+
+		if (concatenated)
+			concatenate();
+
+		freeBuffers();
 	}
 
 	/*
-	    Converts the indices (x's) of a sequence to one-hot vectors
-	    for use as the x parameter for the first layer of a network.
-
-	    Requirement: ix can't be null, or empty. ix[i] < inputSize
+	    Sets whether to keep Wxh and Whh as the two halves of one
+	    hidden x (input + hidden) matrix [Wxh | Whh], and so their
+	    gradients and optimizer state. The backward pass then finds both
+	    gradients with a single product over the rows [x[t] | h[t - 1]] of
+	    all the steps, and the update streams through one matrix. Only for
+	    dense inputs, not indices, and a full Whh. Converts the weights, if
+	    the layer is already initialized.
 	*/
-	Matrix[] ixTox(int ix[])
+	public void setConcatenated(boolean concatenated)
 	{
-		if (ix == null)
-			throw new NullPointerException("The sequence can't be null.");
+		if (concatenated && recurrentRank > 0)
+			throw new IllegalStateException(
+			    "Concatenated weights require a full Whh.");
 
-		if (ix.length == 0)
-			throw new IllegalArgumentException(
-			    "The sequence must be non-empty.");
+		this.concatenated = concatenated;
 
+		if (!initialized)
+			return;
+
+		if (concatenated)
+			concatenate();
+		else
+			separate();
+
+		freeBuffers();
+	}
+
+	// Copies Wxh and Whh, and their optimizer state, into the halves of new
+	// concatenated matrices, and makes them views of these.
+	private void concatenate()
+	{
+		concatenateWeights();
+		concatenateState();
+	}
+
+	// Like concatenate, for the weights only.
+	private void concatenateWeights()
+	{
+		Wcat = Matrix.zeros(hiddenSize, inputSize + hiddenSize, precision);
+		Wxh = Matrix.copyInto(Wxh, inputHalf(Wcat));
+		Whh = Matrix.copyInto(Whh, recurrentHalf(Wcat));
+	}
+
+	// Like concatenate, for the optimizer state only.
+	private void concatenateState()
+	{
+		stateWcat = new Matrix[state[0].length];
+		for (int k = 0; k < stateWcat.length; ++k)
 		{
-			for (int index : ix)
-				if (index < 0 || index >= inputSize)
-					throw new IllegalArgumentException(
-					    "Illegal index passed as argument.");
+			stateWcat[k] = Matrix.zerosLike(Wcat);
+			state[0][k] = Matrix.copyInto(state[0][k], inputHalf(stateWcat[k]));
+			state[1][k] =
+			    Matrix.copyInto(state[1][k], recurrentHalf(stateWcat[k]));
+		}
+
+		stateCols = null;
+	}
+
+	// Copies Wxh and Whh, and their optimizer state, out of the
+	// concatenated matrices.
+	private void separate()
+	{
+		Wxh = new Matrix(Wxh);
+		Whh = new Matrix(Whh);
+		for (int k = 0; k < state[0].length; ++k)
+		{
+			state[0][k] = new Matrix(state[0][k]);
+			state[1][k] = new Matrix(state[1][k]);
 		}
 
-		// start at t = 1
-		Matrix[] oneHot = new Matrix[ix.length + 1];
-		for (int t = 1; t < ix.length + 1; t++)
-			oneHot[t] = Matrix.oneHot(inputSize, ix[t - 1]);
+		Wcat = null;
+		stateWcat = null;
+		stateCols = null;
+	}
 
-		return oneHot;
+	// Returns the Wxh half of a concatenated matrix, as a view.
+	private Matrix inputHalf(Matrix cat)
+	{
+		return cat.block(0, 0, hiddenSize, inputSize);
 	}
 
-	// Like ixTox, but a single index instead of an array
-	Matrix ixTox(int ix)
+	// Returns the Whh half of a concatenated matrix, as a view.
+	private Matrix recurrentHalf(Matrix cat)
 	{
-		if (ix < 0 || ix >= inputSize)
-			throw new IllegalArgumentException(
-			    "Illegal index passed as argument.");
+		return cat.block(0, inputSize, hiddenSize, hiddenSize);
+	}
+
+	/*
+	    Returns a layer sharing the weights and the optimizer state with this
+	    one, but with its own hidden state (a copy of this one) and buffers.
+
+	    Lets several threads train the same weights at once, Hogwild style:
+	    each updates them without locking, and races between the updates are
+	    rare enough with sparse gradients to be harmless. Changes to the
+	    hyperparameters or precision of either layer aren't shared.
+	*/
+	RNNLayer replicate()
+	{
+		if (!initialized)
+			throw new IllegalStateException("Layer was not initialized.");
+
+		RNNLayer replica =
+		    new RNNLayer(inputSize, hiddenSize, outputSize, learningRate);
+		replica.recurrentRank = recurrentRank;
+		replica.outputRank = outputRank;
+		replica.precision = precision;
+		replica.optimizer = optimizer;
+		replica.concatenated = concatenated;
+
+		replica.Wxh = Wxh;
+		replica.Whh = Whh;
+		replica.Why = Why;
+		replica.bh = bh;
+		replica.by = by;
+		replica.Uhh = Uhh;
+		replica.Vhh = Vhh;
+		replica.Uhy = Uhy;
+		replica.Vhy = Vhy;
+		replica.Wcat = Wcat;
+		replica.h = new Matrix(h);
+
+		replica.state = state;
+		replica.stateWcat = stateWcat;
+		replica.pruned = pruned;
+		replica.sparseInference = sparseInference;
+		replica.steps = steps;
+
+		replica.initialized = true;
+		return replica;
+	}
+
+	// Initialize the net with random weights.
+	public void initialize()
+	{
+		if (inputSize <= 0 || hiddenSize <= 0 || outputSize <= 0)
+			throw new IllegalArgumentException("Illegal layer sizes.");
+
+		// create weight matrices
+
+		double scale = 0.1;
+
+		if (concatenated && recurrentRank > 0)
+			throw new IllegalStateException(
+			    "Concatenated weights require a full Whh.");
+
+		Wxh = Random.randn(hiddenSize, inputSize).mul(scale).toPrecision(
+		    precision);
+		if (recurrentRank > 0) // products of the factors scaled like Whh
+		{
+			double s = factorScale(scale, recurrentRank);
+			Uhh = Random.randn(hiddenSize, recurrentRank).mul(s).toPrecision(
+			    precision);
+			Vhh = Random.randn(recurrentRank, hiddenSize).mul(s).toPrecision(
+			    precision);
+			Whh = null;
+		}
+		else
+		{
+			Whh = Random.randn(hiddenSize, hiddenSize).mul(scale).toPrecision(
+			    precision);
+			Uhh = Vhh = null;
+		}
+		if (outputRank > 0)
+		{
+			double s = factorScale(scale, outputRank);
+			Uhy = Random.randn(outputSize, outputRank).mul(s).toPrecision(
+			    precision);
+			Vhy = Random.randn(outputRank, hiddenSize).mul(s).toPrecision(
+			    precision);
+			Why = null;
+		}
+		else
+		{
+			Why = Random.randn(outputSize, hiddenSize).mul(scale).toPrecision(
+			    precision);
+			Uhy = Vhy = null;
+		}
+		bh = Matrix.zeros(1, hiddenSize, precision);
+		by = Matrix.zeros(1, outputSize, precision);
+		if (concatenated)
+			concatenateWeights();
+
+		h = Random.randn(hiddenSize);
+
+		pruned = null;
+		resetState();
+
+		freeBuffers();
 
-		return Matrix.oneHot(inputSize, ix);
+		initialized = true;
+	}
+
+	// Returns the scale of random factors of a rank r product, for its
+	// elements to have the given scale.
+	private static double factorScale(double scale, int r)
+	{
+		return java.lang.Math.sqrt(scale / java.lang.Math.sqrt(r));
 	}
 
 	/*
@@ -188,103 +492,243 @@ public class RNNLayer implements Serializable
 
 	    TRAINING
 
-	    Takes x as input. For the first layer, x[t] should be a one-hot vector,
-	    for the others it's the output of the previous layer.
+	    Takes the inputs x as the rows of X (row t - 1 is x at step t). For
+	    the first layer, x[t] is a one-hot vector, or it's given as indices
+	    (see below). For the others it's the output of the previous layer.
+
+	    A batch of B sequences of the same length is given step by step, the
+	    B rows of step t at rows (t - 1) B .. t B - 1, and each sequence
+	    continues from its own hidden state. The gradients are averaged over
+	    the batch.
 
 	    Yields y: unnormalized probabilities (inputs to next layers)
-	          p: normalized probabilities (for sampling)
-	    and dy, if provided with targets y's (input for the backward pass)
+	    and, through getLoss, dy (input for the backward pass)
 
 	    SAMPLING
 
 	    Same as training, but x should be treated as a seed sequence.
 
 	    Requirement:
-	    x came from ixTox or the previous layer's forward pass result y.
+	    X came from the previous layer's forward pass result y, and doesn't
+	    change until the backward pass.
+	*/
+	void forward(Matrix X)
+	{
+		forward(X, 1);
+	}
+
+	// Training forward pass for a batch of batchSize sequences.
+	void forward(Matrix X, int batchSize)
+	{
+		beginForward(X, batchSize);
+		forwardSteps(0, lastSequenceLength);
+		endForward();
+	}
+
+	/*
+	    Starts a forward pass for a batch of batchSize sequences, to be run
+	    through forwardSteps, in order of the steps, and finished with
+	    endForward.
+
+	    The rows of X are only read by forwardSteps for the same steps, so
+	    they can be filled in as it goes.
 	*/
-	void forward(Matrix x[])
+	void beginForward(Matrix X, int batchSize)
 	{
 		if (!initialized)
 			throw new IllegalStateException("Layer was not initialized.");
 
-		if (x == null || x.length < 2) // starting at t = 1
+		if (X == null)
+			throw new NullPointerException("The sequence can't be null.");
+
+		if (X.getN() != inputSize)
+			throw new IllegalArgumentException(
+			    "Bad vectors passed as argument.");
+
+		if (batchSize < 1 || X.getM() % batchSize != 0)
 			throw new IllegalArgumentException(
-			    "Expected a sequence of length at least 1.");
+			    "The rows must divide into batchSize sequences.");
+
+		/* Initialize the forward pass */
+
+		this.X = X; // save the inputs (needed for backpropagation)
+		ixAt = null;
+
+		beginForwardPass(X.getM() / batchSize, batchSize);
+	}
+
+	/*
+	    Training forward pass for the first layer, with the inputs given as
+	    indices instead of one-hot vectors. Wxh x[t] is then just a column of
+	    Wxh, so it's copied instead of multiplied, and the backward pass only
+	    updates the columns of Wxh that were used. dx isn't computed.
+
+	    Requirement: ix can't be null, or empty. ix[i] < inputSize.
+	    ix is kept until the backward pass, and must not change until then.
+	*/
+	void forward(int ix[])
+	{
+		forward(ix, 1);
+	}
+
+	// Training forward pass for a batch of batchSize index sequences, in the
+	// order of the rows of X.
+	void forward(int ix[], int batchSize)
+	{
+		beginForward(ix, batchSize);
+		forwardSteps(0, lastSequenceLength);
+		endForward();
+	}
+
+	// Like beginForward, for index sequences.
+	void beginForward(int ix[], int batchSize)
+	{
+		if (!initialized)
+			throw new IllegalStateException("Layer was not initialized.");
+
+		if (ix == null)
+			throw new NullPointerException("The sequence can't be null.");
+
+		if (ix.length == 0)
+			throw new IllegalArgumentException(
+			    "The sequence must be non-empty.");
+
+		if (batchSize < 1 || ix.length % batchSize != 0)
+			throw new IllegalArgumentException(
+			    "The indices must divide into batchSize sequences.");
 
 		{
-			for (int t = 1; t < x.length; ++t)
-				if (x[t] == null || x[t].getk() != inputSize)
+			for (int index : ix)
+				if (index < 0 || index >= inputSize)
 					throw new IllegalArgumentException(
-					    "Bad vector passed as argument.");
+					    "Illegal index passed as argument.");
 		}
 
-		/* Initialize the forward pass */
+		if (concatenated)
+			throw new IllegalStateException(
+			    "Concatenated weights require dense inputs.");
 
-		xAt = x; // save the inputs (needed for backpropagation)
+		X = null;
+		ixAt = ix;
 
-		// Reset outputs
+		beginForwardPass(ix.length / batchSize, batchSize);
+	}
 
-		lastSequenceLength = x.length - 1;
+	// Forward pass for a single seed index.
+	void forward(int ix)
+	{
+		forward(new int[] {ix});
+	}
 
-		// hidden state vectors through time
-		hAt = new Matrix[lastSequenceLength + 1];
+	// Prepares the forward pass over the saved inputs.
+	private void beginForwardPass(int sequenceLength, int batchSize)
+	{
+		// Reset outputs
 
-		// normalized probability vectors through time
-		pAt = new Matrix[lastSequenceLength + 1];
+		lastSequenceLength = sequenceLength;
+		lastBatchSize = batchSize;
+		haveDy = false;
 
-		// normalized probability vectors through time
-		yAt = new Matrix[lastSequenceLength + 1];
+		ensureForwardBuffers(sequenceLength, batchSize);
+		ensureHiddenState(batchSize);
 
-		hAt[0] = new Matrix(h); // copy the current state
+		if (sparseInference && sparseWhh == null && sparseWhy == null
+		    && sparseWxh == null)
+			makeSparseCopies();
 
-		/* Forward pass */
+		Matrix.copyInto(h, hAt[0]); // copy the current states
+	}
 
-		for (int t = 1; t < lastSequenceLength + 1; ++t)
-		{
-			// find the new hidden state
-			hAt[t] = (Matrix.dot(Wxh, xAt[t])
-			              .add(Matrix.dot(Whh, hAt[t - 1]))
-			              .add(bh))
-			             .tanh();
+	/*
+	    Runs the forward pass for steps [from, to) (counting from 0), right
+	    after the steps before from. Yields the rows of y for these steps.
 
-			// find unnormalized output probabilities
-			yAt[t] = Matrix.dot(Why, hAt[t]).add(by);
+	    The products over several steps give the same results however the
+	    steps are split, as long as each call has more than one row.
+	*/
+	void forwardSteps(int from, int to)
+	{
+		int r0 = from * lastBatchSize, r1 = to * lastBatchSize;
+
+		// the input projections don't depend on h: all of these steps at once
+		Matrix xh = rows(XH, r0, r1);
+		if (ixAt != null) // columns of Wxh
+			for (int r = r0; r < r1; ++r)
+				Matrix.columnInto(Wxh, ixAt[r], xhRows[r]);
+		else
+		{
+			Matrix x = rows(X, r0, r1);
+			if (concatenated) // next to h[t - 1], for endBackward
+				x = Matrix.copyInto(x, rows(SX, r0, r1));
+			if (sparseWxh != null)
+				Matrix.dotNTInto(x, sparseWxh, xh);
+			else
+				Matrix.dotNTInto(x, Wxh, xh);
+		}
+		xh.addToRows(bh);
 
-			// normalize output probabilities
-			pAt[t] = Math.softmax(yAt[t]);
+		// find the new hidden states
+		for (int t = from + 1; t < to + 1; ++t)
+		{
+			if (sparseWhh != null)
+				Matrix.tanhCellInto(sparseWhh, hAt[t - 1], xhAt[t], hAt[t]);
+			else if (Vhh == null)
+				Matrix.tanhCellInto(Whh, hAt[t - 1], xhAt[t], hAt[t]);
+			else // through the factors, rank r first
+				Matrix.tanhCellInto(Uhh,
+				    Matrix.dotNTInto(hAt[t - 1], Vhh, zhAt[t]), xhAt[t],
+				    hAt[t]);
 		}
 
-		/* Update the hidden state */
+		// find unnormalized output probabilities, all of these steps at once
+		Matrix hcur = rows(Hcur, r0, r1), y = rows(Y, r0, r1);
+		if (sparseWhy != null)
+			Matrix.dotNTInto(hcur, sparseWhy, y);
+		else if (Vhy == null)
+			Matrix.dotNTInto(hcur, Why, y);
+		else
+			Matrix.dotNTInto(
+			    Matrix.dotNTInto(hcur, Vhy, rows(Zy, r0, r1)), Uhy, y);
+		y.addToRows(by);
+	}
 
-		h = hAt[lastSequenceLength];
+	// Finishes the forward pass: updates the hidden state.
+	void endForward()
+	{
+		Matrix.copyInto(hAt[lastSequenceLength], h);
 	}
 
-	// Forward pass for a single seed.
-	void forward(Matrix x)
+	// Makes sure there's a hidden state for each sequence in the batch. New
+	// states start as copies of the first one.
+	void ensureHiddenState(int batchSize)
 	{
-		if (x == null)
-			throw new NullPointerException("x is null.");
+		if (h.getM() == batchSize)
+			return;
 
-		Matrix[] xa = new Matrix[2];
-		xa[1] = x;
-		forward(xa);
+		Matrix first = h.row(0);
+		h = Matrix.zeros(batchSize, hiddenSize);
+		for (int b = 0; b < batchSize; ++b)
+			Matrix.copyInto(first, h.row(b));
 	}
 
 	/*
 	    Calculates the cross-entropy loss of the last forward pass
-	    given target outputs.
+	    given target outputs, and the gradients dy for the backward pass
+	    (see getdy). Each step takes one pass of softmax, loss and dy, with
+	    the softmax normalized through log-sum-exp. For a batch, returns the
+	    mean loss per sequence, and dy is averaged too.
 
-	    iy - the target indices
+	    iy - the target indices, in the order of the rows of y
 
-	    Requirements: iy must be the size of the last sequence length, iy[i] <
-	   outputSize
+	    Requirements: iy must be the size of the last sequence length (times
+	   the batch size), iy[i] < outputSize
 	*/
 	double getLoss(int iy[])
 	{
 		if (!initialized)
 			throw new IllegalStateException("Network was not initialized.");
 
-		if (iy == null || iy.length != lastSequenceLength)
+		if (iy == null || iy.length != lastSequenceLength * lastBatchSize)
 			throw new IllegalArgumentException(
 			    "Expected the iy sequence to be the same length as the last x sequence.");
 
@@ -295,181 +739,756 @@ public class RNNLayer implements Serializable
 					    "Bad index passed as argument.");
 		}
 
+		ensureBackwardBuffers(lastSequenceLength, lastBatchSize);
+		ensureLossBuffers(lastSequenceLength * lastBatchSize);
+
+		// calculate the cross-entropy loss, and backprop into y,
+		// http://cs231n.github.io/neural-networks-case-study/#grad
 		double loss = 0.0;
-		for (int t = 1; t < lastSequenceLength + 1; ++t) // start at t = 1
-			loss += -java.lang.Math.log(
-			    pAt[t].at(iy[t - 1])); // calculate the cross-entropy loss
+		for (int r = 0; r < iy.length; ++r)
+			loss += Matrix.softmaxCrossEntropyInto(yRows[r], iy[r], dyRows[r]);
+
+		if (lastBatchSize > 1) // average over the batch
+		{
+			dY.mul(1.0 / lastBatchSize);
+			loss /= lastBatchSize;
+		}
 
+		haveDy = true;
 		return loss;
 	}
 
 	// Returns y: the unnormalized probabilities - output of the last forward
-	// pass, starting at t = 1.
-	Matrix[] gety()
+	// pass, in the order of the rows of x.
+	Matrix gety()
 	{
 		if (!initialized)
 			throw new IllegalStateException("Network was not initialized.");
 
-		return yAt;
+		return Y;
 	}
 
-	// Returns p: the normalized probabilities - output of the last forward
-	// pass, starting at t = 1.
-	Matrix[] getp()
+	/*
+	    Returns dy: the gradients to be used as input to the last layer's
+	    backward pass, in the order of the rows of y, as computed by getLoss.
+
+	    Requirement: getLoss was called after the last forward pass.
+	*/
+	Matrix getdy()
 	{
 		if (!initialized)
 			throw new IllegalStateException("Network was not initialized.");
 
-		return pAt;
+		if (!haveDy)
+			throw new IllegalStateException(
+			    "No loss calculated for the last forward pass.");
+
+		return dY;
 	}
 
 	/*
-	    Returns dy: the gradients to be used as input to the last layer's
-	    backward pass, starting at t = 1. given iy - the target indices.
+	    Training backward pass.
 
-	    Requirement:
-	    iy must be the size of the last sequence length, iy[i] < outputSize
+	    Takes dy - the gradient to backpropagate, in the order of the rows of y.
+
+	    Yields dx, which can be used as input to previous layer's backward pass,
+	    if present, and the updated weights.
+
+	    Requirement: dy came from this layer's getdy() or the next layer's
+	    backward pass result dx.
+	*/
+	void backward(Matrix dy)
+	{
+		computeGradients(dy);
+		applyGradients(1.0);
+	}
+
+	/*
+	    Like backward, but only computes the weight gradients, without
+	    updating the weights. Yields dx.
 	*/
-	Matrix[] getdy(int iy[])
+	void computeGradients(Matrix dy)
+	{
+		beginBackward(dy, false);
+		backwardSteps(0, lastSequenceLength);
+		endBackward(false);
+	}
+
+	/*
+	    Starts a backward pass for dy, to be run through backwardSteps, in
+	    reverse order of the steps, and finished with endBackward.
+
+	    The rows of dy are only read by backwardSteps for the same steps,
+	    so they can be filled in as it goes.
+
+	    If continued, the pass is for the segment of a longer sequence right
+	    before the one of the last pass, and the gradient flowing back into
+	    its last hidden state is kept (see MultiLayerRNN checkpointing).
+	*/
+	void beginBackward(Matrix dy, boolean continued)
 	{
 		if (!initialized)
 			throw new IllegalStateException("Network was not initialized.");
 
-		if (iy == null || iy.length != lastSequenceLength)
+		if (dy == null || dy.getM() != lastSequenceLength * lastBatchSize)
 			throw new IllegalArgumentException(
-			    "Expected the iy sequence to be the same length as the last x sequence.");
+			    "Expected the y sequence to be the same length as the last x sequence.");
+
+		if (dy.getN() != outputSize)
+			throw new IllegalArgumentException(
+			    "Bad vectors passed as argument.");
+
+		/* Initialize backward pass */
+
+		ensureBackwardBuffers(lastSequenceLength, lastBatchSize);
+
+		dYIn = dy;
+		if (!continued)
+			dhNext.fill(0.0);
+	}
 
+	/*
+	    Backpropagates through steps [from, to) (counting from 0), right
+	    after the steps from to on. Yields the rows of dx for these steps.
+	*/
+	void backwardSteps(int from, int to)
+	{
+		int r0 = from * lastBatchSize, r1 = to * lastBatchSize;
+
+		// the y contributions to dh: all of these steps at once
+		Matrix dy = rows(dYIn, r0, r1), dhy = rows(dHy, r0, r1);
+		if (Vhy == null)
+			Matrix.dotInto(dy, Why, dhy);
+		else
+			Matrix.dotInto(Matrix.dotInto(dy, Uhy, rows(Gy, r0, r1)), Vhy, dhy);
+
+		// backprop into h and through tanh nonlinearity
+		for (int t = to; t >= from + 1; --t)
 		{
-			for (int index : iy)
-				if (index < 0 || index >= outputSize)
-					throw new IllegalArgumentException(
-					    "Bad index passed as argument.");
+			Matrix.addInto(dhyAt[t], dhNext, dhAt[t]);
+			Matrix.tanhGradInto(hAt[t], dhAt[t], dhRawAt[t]);
+
+			// save dhNext for the next iteration
+			if (Vhh == null)
+				Matrix.dotInto(dhRawAt[t], Whh, dhNext);
+			else
+				Matrix.dotInto(
+				    Matrix.dotInto(dhRawAt[t], Uhh, ghAt[t]), Vhh, dhNext);
 		}
 
-		Matrix[] dyAt = new Matrix[lastSequenceLength + 1]; // start at t = 1
+		// multi-layer only - save dx
+		if (ixAt == null)
+		{
+			Matrix dx = rows(dX, r0, r1);
+			Matrix.dotInto(rows(dH, r0, r1), Wxh, dx);
+			dx.clip(clip_a, -clip_a); // clip exploding gradients
+		}
+	}
 
-		for (int t = 1; t < lastSequenceLength + 1; ++t)
+	// Finishes the backward pass: finds the weight gradients, or adds them
+	// to the ones found so far, if accumulate (for a continued pass).
+	void endBackward(boolean accumulate)
+	{
+		Matrix[] d = dparams; // where the gradients go
+		if (accumulate)
 		{
-			// backprop into y,
-			// http://cs231n.github.io/neural-networks-case-study/#grad
-			dyAt[t] = new Matrix(pAt[t]);
+			if (!haveGradients)
+				throw new IllegalStateException("No gradients to add to.");
+
+			if (dsegment == null)
+			{
+				dsegment = new Matrix[dparams.length];
+				for (int i = 0; i < dparams.length; ++i)
+					dsegment[i] = Matrix.zerosLike(dparams[i]);
+				if (concatenated)
+					dsegmentWcat = Matrix.zerosLike(dWcat);
+			}
+			d = dsegment;
+		}
 
-			int expected = iy[t - 1];
-			dyAt[t].setAt(expected, (dyAt[t].at(expected) - 1));
+		// y updates, all steps at once
+		if (Vhy == null)
+			Matrix.dotTNInto(dYIn, Hcur, d[2]);
+		else // Uhy and Vhy, the last one
+		{
+			Matrix.dotTNInto(dYIn, Zy, d[2]);
+			Matrix.dotTNInto(Gy, Hcur, d[d.length - 1]);
 		}
+		Matrix.dotTNInto(dYIn, ones, d[4]);
 
-		return dyAt;
+		// h updates, all steps at once
+		if (ixAt != null) // x[t] is one-hot, only one column changes
+		{
+			if (!accumulate)
+				clearInputGradient();
+			for (int r = 0; r < ixAt.length; ++r)
+				addInputGradient(ixAt[r], dhRawRows[r]);
+		}
+		else
+		{
+			if (dirtyCount > 0)
+				clearInputGradient(); // forget the dirty columns
+			if (!concatenated)
+			{
+				Matrix.dotTNInto(dHRaw, X, d[0]);
+				if (accumulate)
+					dWxh.add(d[0]);
+			}
+			dirtyCount = -1; // all of dWxh
+		}
+		if (concatenated) // dWxh and dWhh at once, over the rows of S
+		{
+			Matrix.dotTNInto(dHRaw, S, accumulate ? dsegmentWcat : dWcat);
+			if (accumulate)
+				dWcat.add(dsegmentWcat);
+		}
+		else if (Vhh == null)
+			Matrix.dotTNInto(dHRaw, Hprev, d[1]);
+		else // Uhh and Vhh, after the others
+		{
+			Matrix.dotTNInto(dHRaw, Zh, d[1]);
+			Matrix.dotTNInto(Gh, Hprev, d[5]);
+		}
+		Matrix.dotTNInto(dHRaw, ones, d[3]);
+
+		if (accumulate)
+			for (int i = concatenated ? 2 : 1; i < dparams.length; ++i)
+				dparams[i].add(d[i]);
+
+		dYIn = null;
+		haveGradients = true;
 	}
 
 	/*
-	    Training backward pass.
+	    Adds the weight gradients from the last computeGradients of other,
+	    a replica of this layer, to the ones of this layer.
+	*/
+	void addGradients(RNNLayer other)
+	{
+		if (!haveGradients || !other.haveGradients)
+			throw new IllegalStateException("No gradients were computed.");
 
-	    Takes dy - the gradient to backpropagate.
+		if (other.inputSize != inputSize || other.hiddenSize != hiddenSize
+		    || other.outputSize != outputSize)
+			throw new IllegalArgumentException(
+			    "Expected a layer with the same dimensions.");
 
-	    Yields dx, which can be used as input to previous layer's backward pass,
-	    if present, and the updated weights.
+		if (other.dirtyCount < 0)
+		{
+			// the columns that aren't dirty are zero
+			for (int k = 0; k < dirtyCount; ++k)
+				dirty[dirtyCols[k]] = false;
+			dWxh.add(other.dWxh);
+			dirtyCount = -1;
+		}
+		else if (dirtyCount < 0)
+			for (int k = 0; k < other.dirtyCount; ++k)
+			{
+				int j = other.dirtyCols[k];
+				dWxhCols[j].add(other.dWxhCols[j]);
+			}
+		else
+			for (int k = 0; k < other.dirtyCount; ++k)
+			{
+				int j = other.dirtyCols[k];
+				addInputGradient(j, other.dWxhCols[j]);
+			}
+
+		for (int i = 1; i < dparams.length; ++i)
+			dparams[i].add(other.dparams[i]);
+	}
 
-	    Requirement: x came from this layer's getdy() or the next layer's
-	    backward pass result dx.
+	/*
+	    Updates the weights with the gradients from the last computeGradients,
+	    multiplied by scale (after adding the ones of any replicas).
 	*/
-	void backward(Matrix dy[])
+	void applyGradients(double scale)
 	{
-		if (!initialized)
-			throw new IllegalStateException("Network was not initialized.");
+		if (!haveGradients)
+			throw new IllegalStateException("No gradients were computed.");
 
-		if (dy == null
-		    || dy.length != lastSequenceLength + 1) // starts at t = 1
-			throw new IllegalArgumentException(
-			    "Expected the y sequence to be the same length as the last x sequence.");
+		haveGradients = false;
 
+		// dparams from this one on are handled as a whole
+		int first = concatenated ? 2 : 1;
+
+		if (scale != 1.0)
 		{
-			for (int t = 1; t < lastSequenceLength + 1; ++t)
-				if (dy[t] == null || dy[t].getk() != outputSize)
-					throw new IllegalArgumentException(
-					    "Bad index passed as argument.");
+			if (concatenated)
+				dWcat.mul(scale);
+			else if (dirtyCount < 0)
+				dWxh.mul(scale);
+			else
+				for (int k = 0; k < dirtyCount; ++k)
+					dWxhCols[dirtyCols[k]].mul(scale);
+
+			for (int i = first; i < dparams.length; ++i)
+				dparams[i].mul(scale);
 		}
 
-		/* Initialize backward pass */
+		// clip exploding gradients
+
+		if (concatenated)
+			dWcat.clip(clip_a, -clip_a);
+		else if (dirtyCount < 0)
+			dWxh.clip(clip_a, -clip_a);
+		else
+			for (int k = 0; k < dirtyCount; ++k)
+				dWxhCols[dirtyCols[k]].clip(clip_a, -clip_a);
+
+		for (int i = first; i < dparams.length; ++i)
+			dparams[i].clip(clip_a, -clip_a);
+
+
+		/* Update weights */
+
+		long step = steps.incrementAndGet();
+
+		if (concatenated)
+			optimizer.update(Wcat, dWcat, stateWcat, learningRate, step);
+		else if (dirtyCount < 0)
+			optimizer.update(Wxh, dWxh, state[0], learningRate, step);
+		else // the other columns have no gradient
+			for (int k = 0; k < dirtyCount; ++k)
+			{
+				int j = dirtyCols[k];
+				optimizer.update(WxhCols[j], dWxhCols[j], stateCols[j],
+				    learningRate, step);
+			}
+
+		for (int i = first; i < dparams.length; ++i)
+			optimizer.update(
+			    params[i], dparams[i], state[i], learningRate, step);
+
+		if (pruned != null) // keep the pruned weights at zero
+			for (int i = 0; i < params.length; ++i)
+				if (pruned[i] != null)
+					zero(params[i], pruned[i]);
+
+		dropSparseCopies(); // stale
+	}
+
+	/*
+	    Prunes the weights: zeroes the smallest ones by magnitude, this
+	    fraction of each weight matrix but the biases, and keeps them at zero
+	    through any further training. Requires 0 <= sparsity < 1.
+
+	    A factored Whh or Why is left as it is: its factors are already
+	    small, and sparse inference only uses copies of the full matrices.
+	*/
+	void prune(double sparsity)
+	{
+		if (!initialized)
+			throw new IllegalStateException("Layer was not initialized.");
+
+		if (!(sparsity >= 0.0 && sparsity < 1.0))
+			throw new IllegalArgumentException(
+			    "Sparsity must be in [0, 1).");
+
+		Matrix[] w = weights();
+		BitSet[] mask = new BitSet[w.length];
+		for (int i = 0; i < w.length; ++i)
+			if (w[i] != bh && w[i] != by && !isFactor(w[i]))
+			{
+				mask[i] = smallest(w[i], (int)(sparsity * w[i].getM()
+				                                   * w[i].getN()));
+				zero(w[i], mask[i]);
+			}
+
+		pruned = mask;
+		dropSparseCopies();
+	}
 
-		Matrix[] dyAt = dy; // just an alias
+	// Returns true if m is one of the factors of Whh or Why.
+	private boolean isFactor(Matrix m)
+	{
+		return m == Uhh || m == Vhh || m == Uhy || m == Vhy;
+	}
 
-		Matrix dWxh = Matrix.zerosLike(Wxh);
-		Matrix dWhh = Matrix.zerosLike(Whh);
-		Matrix dWhy = Matrix.zerosLike(Why);
-		Matrix dbh = Matrix.zerosLike(bh);
-		Matrix dby = Matrix.zerosLike(by);
+	// Returns the indices (i N + j) of the count smallest elements of m by
+	// magnitude.
+	private static BitSet smallest(Matrix m, int count)
+	{
+		int N = m.getN();
+		double[] magnitude = new double[m.getM() * N];
+		for (int k = 0; k < magnitude.length; ++k)
+			magnitude[k] = java.lang.Math.abs(m.at(k / N, k % N));
+
+		BitSet mask = new BitSet(magnitude.length);
+		if (count == 0)
+			return mask;
+
+		double[] sorted = magnitude.clone();
+		Arrays.sort(sorted);
+		double threshold = sorted[count - 1];
+
+		// below the threshold, then as many ties as needed
+		int below = 0;
+		for (double x : magnitude)
+			if (x < threshold)
+				below++;
+
+		int ties = count - below;
+		for (int k = 0; k < magnitude.length; ++k)
+			if (magnitude[k] < threshold
+			    || (magnitude[k] == threshold && ties-- > 0))
+				mask.set(k);
+
+		return mask;
+	}
 
-		Matrix dhNext = Matrix.zerosLike(h);
+	// Zeroes the elements of m in the mask (indices i N + j).
+	private static void zero(Matrix m, BitSet mask)
+	{
+		int N = m.getN();
+		for (int k = mask.nextSetBit(0); k >= 0; k = mask.nextSetBit(k + 1))
+			m.setAt(k / N, k % N, 0.0);
+	}
 
-		// gradients to be passed to the next backwards pass
-		dxAt = new Matrix[lastSequenceLength + 1];
+	// Returns an int8 copy of the layer, for inference only, with the
+	// hidden state of the first sequence. Factors are multiplied out first.
+	QuantizedRNNLayer quantize()
+	{
+		if (!initialized)
+			throw new IllegalStateException("Layer was not initialized.");
 
-		/* Backward pass */
+		return new QuantizedRNNLayer(Wxh,
+		    Vhh == null ? Whh : Matrix.dot(Uhh, Vhh),
+		    Vhy == null ? Why : Matrix.dot(Uhy, Vhy), bh, by, h.row(0));
+	}
 
-		for (int t = lastSequenceLength; t >= 1; --t)
+	// Sets whether the forward passes use sparse copies of Wxh, Whh and Why
+	// (the ones that aren't factored), made when needed.
+	void setSparseInference(boolean sparseInference)
+	{
+		this.sparseInference = sparseInference;
+		dropSparseCopies();
+	}
+
+	// Makes sparse copies of the full weight matrices.
+	private void makeSparseCopies()
+	{
+		sparseWxh = ixAt == null ? SparseMatrix.fromDense(Wxh) : null;
+		sparseWhh = Vhh == null ? SparseMatrix.fromDense(Whh) : null;
+		sparseWhy = Vhy == null ? SparseMatrix.fromDense(Why) : null;
+	}
+
+	// Drops the sparse copies, after the weights changed.
+	private void dropSparseCopies()
+	{
+		sparseWxh = sparseWhh = sparseWhy = null;
+	}
+
+	/*
+	    Returns the weight matrices, in the order of their optimizer state:
+	    {Wxh, Whh, Why, bh, by}, with Uhh (Uhy) for a factored Whh (Why),
+	    then Vhh and Vhy, if factored.
+	*/
+	private Matrix[] weights()
+	{
+		Matrix[] w = {Wxh, Vhh == null ? Whh : Uhh, Vhy == null ? Why : Uhy,
+		    bh, by};
+
+		if (Vhh != null)
+			w = append(w, Vhh);
+		if (Vhy != null)
+			w = append(w, Vhy);
+		return w;
+	}
+
+	// Returns a copy of a with m at the end.
+	private static Matrix[] append(Matrix[] a, Matrix m)
+	{
+		Matrix[] b = Arrays.copyOf(a, a.length + 1);
+		b[a.length] = m;
+		return b;
+	}
+
+	// Creates zero optimizer state for each weight matrix.
+	private void resetState()
+	{
+		Matrix[] params = weights();
+		state = new Matrix[params.length][optimizer.stateSize()];
+		for (int i = 0; i < params.length; ++i)
+			for (int k = 0; k < state[i].length; ++k)
+				state[i][k] = Matrix.zerosLike(params[i]);
+
+		steps = new AtomicLong();
+		stateCols = null;
+
+		if (concatenated)
+			concatenateState();
+	}
+
+	// Adds dhRaw to column j of dWxh, and marks it as dirty.
+	private void addInputGradient(int j, Matrix dhRaw)
+	{
+		dWxh.addToColumn(j, dhRaw);
+		if (!dirty[j])
 		{
-			// y updates
-			dWhy.add(Matrix.dot(dyAt[t], hAt[t].T()));
-			dby.add(dyAt[t]);
+			dirty[j] = true;
+			dirtyCols[dirtyCount++] = j;
+		}
+	}
 
-			// backprop into h and through tanh nonlinearity
-			Matrix dh = Matrix.dot(Why.T(), dyAt[t]).add(dhNext);
-			Matrix dhRaw = Matrix.onesLike(hAt[t])
-			                   .add(new Matrix(hAt[t]).mul(hAt[t]).neg())
-			                   .mul(dh);
+	// Zeroes dWxh, only in the dirty columns if they're known.
+	private void clearInputGradient()
+	{
+		if (dirtyCount < 0)
+			dWxh.fill(0.0);
+		else
+			for (int k = 0; k < dirtyCount; ++k)
+			{
+				dWxhCols[dirtyCols[k]].fill(0.0);
+				dirty[dirtyCols[k]] = false;
+			}
+
+		dirtyCount = 0;
+	}
 
-			// h updates
-			dWxh.add(Matrix.dot(dhRaw, xAt[t].T()));
-			dWhh.add(Matrix.dot(dhRaw, hAt[t - 1].T()));
-			dbh.add(dhRaw);
+	// Drops all buffers, so that they're created again with the current sizes.
+	private void freeBuffers()
+	{
+		X = null;
+		ixAt = null;
+		wsXH = wsdH = wsdY = wsdX = null;
+		dropSparseCopies();
+		workspaceBatch = 0;
+		dWxh = null;
+		dsegment = null;
+		haveGradients = false;
+	}
 
-			// save dhNext for the next iteration
-			dhNext = Matrix.dot(Whh.T(), dhRaw);
+	// Makes sure the forward pass buffers fit a batch of sequences of this
+	// length: grows the workspace if it's too small, and points the views
+	// at its first rows.
+	private void ensureForwardBuffers(int sequenceLength, int batchSize)
+	{
+		int rows = sequenceLength * batchSize;
+		if (wsXH == null || wsXH.getM() < rows || workspaceBatch < batchSize)
+		{
+			int capacity = rows;
+			if (wsXH != null && wsXH.getM() > capacity)
+				capacity = wsXH.getM();
+			if (workspaceBatch < batchSize)
+				workspaceBatch = batchSize;
+
+			wsXH = Matrix.zeros(capacity, hiddenSize);
+			if (concatenated) // H is the right part of S
+			{
+				wsS = Matrix.zeros(
+				    capacity + workspaceBatch, inputSize + hiddenSize);
+				wsH = wsS.block(
+				    0, inputSize, capacity + workspaceBatch, hiddenSize);
+			}
+			else
+			{
+				wsS = null;
+				wsH = Matrix.zeros(capacity + workspaceBatch, hiddenSize);
+			}
+			wsY = Matrix.zeros(capacity, outputSize);
+
+			wsZh = Vhh != null ? Matrix.zeros(capacity, Vhh.getM()) : null;
+			wsZy = Vhy != null ? Matrix.zeros(capacity, Vhy.getM()) : null;
+
+			xhRows = yRows = null;
+
+			stepsBatch = 0; // the views are stale
+			XH = null;
+		}
 
-			// multi-layer only - save dx
-			dxAt[t] = Matrix.dot(Wxh.T(), dh);
+		if (stepsBatch != batchSize) // blocks of a different size
+		{
+			xhAt = blocksAt(wsXH, 1, batchSize);
+			hAt = blocksAt(wsH, 0, batchSize);
+			zhAt = wsZh != null ? blocksAt(wsZh, 1, batchSize) : null;
+			stepsBatch = batchSize;
+			XH = null;
 		}
 
-		// clip exploding gradients
+		if (XH == null || XH.getM() != rows)
+		{
+			XH = rows(wsXH, 0, rows);
+			H = rows(wsH, 0, rows + batchSize);
+			Y = rows(wsY, 0, rows);
+
+			Hprev = rows(H, 0, rows);
+			Hcur = rows(H, batchSize, rows + batchSize);
 
-		double clip_a = -5.0;
-		Matrix dparams[] = {dWxh, dWhh, dWhy, dbh, dby};
+			if (concatenated)
+			{
+				S = rows(wsS, 0, rows);
+				SX = S.block(0, 0, rows, inputSize);
+			}
+
+			Zh = wsZh != null ? rows(wsZh, 0, rows) : null;
+			Zy = wsZy != null ? rows(wsZy, 0, rows) : null;
+
+			dH = null; // the backward views too
+		}
+
+		if (ixAt != null && xhRows == null)
+			xhRows = blocksAt(wsXH, 0, 1);
+	}
+
+	// Makes sure the backward pass buffers fit a batch of sequences of this
+	// length, like ensureForwardBuffers. Requires the forward ones to fit.
+	private void ensureBackwardBuffers(int sequenceLength, int batchSize)
+	{
+		int rows = sequenceLength * batchSize;
+		int capacity = wsXH.getM();
+		if (wsdH == null || wsdH.getM() != capacity
+		    || wsdhNext.getM() != workspaceBatch)
+		{
+			wsdHy = Matrix.zeros(capacity, hiddenSize);
+			wsdH = Matrix.zeros(capacity, hiddenSize);
+			wsdHRaw = Matrix.zeros(capacity, hiddenSize);
+			wsOnes = Matrix.ones(capacity);
+			wsdhNext = Matrix.zeros(workspaceBatch, hiddenSize);
+			wsGh = Vhh != null ? Matrix.zeros(capacity, Vhh.getM()) : null;
+			wsGy = Vhy != null ? Matrix.zeros(capacity, Vhy.getM()) : null;
+
+			dhRawRows = null;
+
+			backwardStepsBatch = 0; // the views are stale
+			dH = null;
+		}
 
-		for (Matrix m : dparams)
-			m.clip(clip_a, -clip_a);
+		// not needed with index inputs
+		if (ixAt == null && (wsdX == null || wsdX.getM() != capacity))
+		{
+			wsdX = Matrix.zeros(capacity, inputSize);
+			dH = null;
+		}
 
-		for (int t = 1; t < lastSequenceLength + 1; ++t)
-			dxAt[t].clip(clip_a, -clip_a);
+		if (backwardStepsBatch != batchSize) // blocks of a different size
+		{
+			dhyAt = blocksAt(wsdHy, 1, batchSize);
+			dhAt = blocksAt(wsdH, 1, batchSize);
+			dhRawAt = blocksAt(wsdHRaw, 1, batchSize);
+			ghAt = wsGh != null ? blocksAt(wsGh, 1, batchSize) : null;
+			backwardStepsBatch = batchSize;
+			dH = null;
+		}
 
+		if (dH == null || dH.getM() != rows)
+		{
+			dY = null; // its view too, if any
+			dHy = rows(wsdHy, 0, rows);
+			dH = rows(wsdH, 0, rows);
+			dHRaw = rows(wsdHRaw, 0, rows);
+			dX = wsdX != null ? rows(wsdX, 0, rows) : null;
+			ones = wsOnes.block(0, 0, 1, rows);
+			dhNext = rows(wsdhNext, 0, batchSize);
+			Gh = wsGh != null ? rows(wsGh, 0, rows) : null;
+			Gy = wsGy != null ? rows(wsGy, 0, rows) : null;
+		}
 
-		/* Update weights with Adagrad */
+		if (ixAt != null && dhRawRows == null)
+			dhRawRows = blocksAt(wsdHRaw, 0, 1);
 
-		Matrix params[] = {Wxh, Whh, Why, bh, by};
-		Matrix gparams[] = {gWxh, gWhh, gWhy, gbh, gby};
+		if (dWxh == null)
+		{
+			params = weights();
+			dparams = new Matrix[params.length];
+
+			int i = 0;
+			if (concatenated)
+			{
+				dWcat = Matrix.zeros(hiddenSize, inputSize + hiddenSize);
+				dparams[i++] = inputHalf(dWcat);
+				dparams[i++] = recurrentHalf(dWcat);
+			}
+			else
+				dWcat = null;
+
+			for (; i < params.length; ++i)
+				dparams[i] = Matrix.zeros(params[i].getM(), params[i].getN());
+
+			dWxh = dparams[0];
+
+			dirty = new boolean[inputSize];
+			dirtyCols = new int[inputSize];
+			dirtyCount = 0;
+
+			WxhCols = new Matrix[inputSize];
+			dWxhCols = new Matrix[inputSize];
+			for (int j = 0; j < inputSize; ++j)
+			{
+				WxhCols[j] = Wxh.col(j);
+				dWxhCols[j] = dWxh.col(j);
+			}
+			stateCols = null;
+		}
 
-		for (int i = 0; i < dparams.length; ++i)
+		if (stateCols == null)
 		{
-			Matrix param = params[i];
-			Matrix dparam = dparams[i];
-			Matrix gparam = gparams[i];
+			stateCols = new Matrix[inputSize][state[0].length];
+			for (int j = 0; j < inputSize; ++j)
+				for (int l = 0; l < state[0].length; ++l)
+					stateCols[j][l] = state[0][l].col(j);
+		}
+	}
 
-			gparam.add(new Matrix(dparam).mul(dparam));
-			Matrix tmp = new Matrix(gparam).apply(
-			    (elem) -> java.lang.Math.sqrt(elem) + 1e-8);
-			param.add(new Matrix(dparam).mul(-learningRate).div(tmp));
+	// Makes sure there are loss buffers for this many rows of y, for the
+	// output layer. Requires the backward ones to fit.
+	private void ensureLossBuffers(int rows)
+	{
+		int capacity = wsXH.getM();
+		if (wsdY == null || wsdY.getM() != capacity)
+		{
+			wsdY = Matrix.zeros(capacity, outputSize);
+			dyRows = blocksAt(wsdY, 0, 1);
+			dY = null;
 		}
+
+		if (dY == null || dY.getM() != rows)
+			dY = rows(wsdY, 0, rows);
+
+		ensureOutputRows();
+	}
+
+	// Makes sure there are views of the rows of y.
+	private void ensureOutputRows()
+	{
+		if (yRows == null)
+			yRows = blocksAt(wsY, 0, 1);
+	}
+
+	// Returns rows [from, to) of m, as a view, or m itself if that's all.
+	private static Matrix rows(Matrix m, int from, int to)
+	{
+		if (from == 0 && to == m.getM())
+			return m;
+
+		return m.block(from, 0, to - from, m.getN());
+	}
+
+	// Returns the blocks of rows of m, this many rows each, as views, the
+	// first one at index t0.
+	private static Matrix[] blocksAt(Matrix m, int t0, int rows)
+	{
+		Matrix[] blocks = new Matrix[t0 + m.getM() / rows];
+		for (int i = t0; i < blocks.length; i++)
+			blocks[i] = m.block((i - t0) * rows, 0, rows, m.getN());
+		return blocks;
 	}
 
 	/*
 	    Returns dx: the gradients to be used as input to the previous layer's
-	    backward pass.
+	    backward pass, in the order of the rows of x. Not available, if the
+	    inputs were indices.
 	*/
-	Matrix[] getdx()
+	Matrix getdx()
 	{
 		if (!initialized)
 			throw new IllegalStateException("Network was not initialized.");
 
-		return dxAt;
+		if (ixAt != null)
+			throw new IllegalStateException(
+			    "No dx for a layer with index inputs.");
+
+		return dX;
 	}
 
 	/*** Sampling ***/
@@ -483,10 +1502,13 @@ public class RNNLayer implements Serializable
 		if (!initialized)
 			throw new IllegalStateException("Network was not initialized.");
 
-		return Math.softmax(new Matrix(yAt[yAt.length - 1]), temp).unravel();
+		// the last step of the first sequence
+		ensureOutputRows();
+		Matrix y = yRows[(lastSequenceLength - 1) * lastBatchSize];
+		return Math.softmax(new Matrix(y), temp).unravel();
 	}
 
-	// Save the hidden state before sampling.
+	// Save the hidden states before sampling.
 	Matrix saveHiddenState()
 	{
 		if (!initialized)
@@ -495,16 +1517,26 @@ public class RNNLayer implements Serializable
 		return new Matrix(h);
 	}
 
-	// Restore the hidden state after sampling.
+	// Copies the hidden states into out, which must have the same size.
+	void copyHiddenState(Matrix out)
+	{
+		Matrix.copyInto(h, out);
+	}
+
+	// Restore the hidden states after sampling.
 	void restoreHiddenState(Matrix h)
 	{
 		if (!initialized)
 			throw new IllegalStateException("Network was not initialized.");
 
-		if (h.getk() != hiddenSize)
+		if (h.getN() != hiddenSize)
 			throw new IllegalArgumentException(
 			    "The hidden state has the wrong size.");
-		this.h = h;
+
+		if (h.getM() == this.h.getM())
+			Matrix.copyInto(h, this.h);
+		else // sampling changed the batch size
+			this.h = new Matrix(h);
 	}
 
 
@@ -527,4 +1559,9 @@ public class RNNLayer implements Serializable
 	{
 		return learningRate;
 	}
+
+	Precision getPrecision()
+	{
+		return precision;
+	}
 }
@@ -2,17 +2,20 @@ package io.github.garstka.rnn.net;
 
 import io.github.garstka.rnn.net.exceptions.BadTrainingSetException;
 import io.github.garstka.rnn.net.exceptions.NoMoreTrainingDataException;
+import io.github.garstka.rnn.net.interfaces.GradientTrainable;
 import io.github.garstka.rnn.net.interfaces.Trainable;
+import io.github.garstka.rnn.net.interfaces.Trainer;
 import io.github.garstka.rnn.net.interfaces.TrainingSet;
 
 import java.io.Serializable;
 
 // Trains a recurrent neural net on a training set.
-public class RNNTrainer
+public class RNNTrainer implements Trainer
 {
 	// Defaults
 
 	public static final int defaultSequenceLength = 50;
+	public static final int defaultBatchSize = 1;
 
 	private Trainable net;
 
@@ -21,11 +24,14 @@ public class RNNTrainer
 	private int
 	    sequenceLength; // Steps to unroll the RNN for during training.
 
+	private int batchSize; // Sequences per step.
+
 	private TrainingSet trainingSet; // The training set.
-	private int dataTrainedIndex; // Current index into training data.
+	private int streamLength; // Data per sequence in a batch.
+	private int dataTrainedIndex; // Current index into each stream.
 
-	private int[] ix; // Training sequence inputs by time.
-	private int[] iy; // Training sequence inputs by time.
+	private int[][] ix; // Training sequence inputs by time, per sequence.
+	private int[][] iy; // Training sequence inputs by time, per sequence.
 	private double smoothLoss; // Loss for training evaluation.
 	private int totalSteps; // Total step count.
 
@@ -39,6 +45,7 @@ public class RNNTrainer
 	public RNNTrainer()
 	{
 		this.setSequenceLength(defaultSequenceLength);
+		this.setBatchSize(defaultBatchSize);
 	}
 
 	// Constructs and initializes.
@@ -60,11 +67,26 @@ public class RNNTrainer
 		this.sequenceLength = length;
 		if (initialized)
 		{
-			ix = new int[sequenceLength];
-			iy = new int[sequenceLength];
+			ix = new int[batchSize][sequenceLength];
+			iy = new int[batchSize][sequenceLength];
 		}
 	}
 
+	/*
+	    Set the number of sequences trained on in each step. The data is
+	    split into this many streams, each read from the start, so every
+	    sequence continues where it left off in the previous step.
+
+	    Training must be initialized again.
+	*/
+	public void setBatchSize(int batchSize)
+	{
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Illegal batch size.");
+
+		this.batchSize = batchSize;
+		initialized = false;
+	}
 	/*** Initialize ***/
 
 	// Initializes training. Requires trainingSet != null.
@@ -85,14 +107,17 @@ public class RNNTrainer
 		if (vocabSize == 0)
 			throw new BadTrainingSetException("Vocabulary can't be empty.");
 
-		if (trainingSet.size() < sequenceLength)
+		streamLength = trainingSet.size() / batchSize;
+
+		if (streamLength < sequenceLength)
 			throw new BadTrainingSetException(
 			    "Data is too small for even a single pass.");
 
 		// get the temporary index arrays for sequences
 
-		ix = new int[sequenceLength];
-		iy = new int[sequenceLength];
+		ix = new int[batchSize][sequenceLength];
+		iy = new int[batchSize][sequenceLength];
+		dataTrainedIndex = 0;
 
 		// initialize smooth loss
 		smoothLoss = -Math.log(1.0 / vocabSize) * sequenceLength;
@@ -119,27 +144,50 @@ public class RNNTrainer
 			    "Non-negative step count expected.");
 
 		for (int i = 0; i < steps; i++)
-		{
-			// try to extract
-			trainingSet.extract(dataTrainedIndex, ix, iy);
+			step(true);
 
-			// train
+		// print debug
+		if (debugMessagesOn)
+			System.out.println(
+			    "Step: " + totalSteps + ", loss: " + getSmoothLoss());
+	}
 
-			double loss = net.forwardBackward(ix, iy);
+	/*
+	    Performs one step: extracts the next sequences, and trains on them,
+	    or only computes the gradients if !update. Then the net must be
+	    GradientTrainable.
+	*/
+	void step(boolean update) throws NoMoreTrainingDataException
+	{
+		// try to extract, from each stream
 
-			// calculate smooth loss
+		if (dataTrainedIndex + sequenceLength + 1 >= streamLength)
+			throw new NoMoreTrainingDataException();
 
-			smoothLoss = smoothLoss * 0.999 + loss * 0.001;
+		for (int b = 0; b < batchSize; b++)
+			trainingSet.extract(
+			    b * streamLength + dataTrainedIndex, ix[b], iy[b]);
 
-			dataTrainedIndex += sequenceLength; // shift the training offset
+		// train
 
-			totalSteps++;
+		double loss;
+		if (update)
+			loss = batchSize == 1 ? net.forwardBackward(ix[0], iy[0])
+			                      : net.forwardBackward(ix, iy);
+		else
+		{
+			GradientTrainable g = (GradientTrainable)net;
+			loss = batchSize == 1 ? g.computeGradients(ix[0], iy[0])
+			                      : g.computeGradients(ix, iy);
 		}
 
-		// print debug
-		if (debugMessagesOn)
-			System.out.println(
-			    "Step: " + totalSteps + ", loss: " + getSmoothLoss());
+		// calculate smooth loss
+
+		smoothLoss = smoothLoss * 0.999 + loss * 0.001;
+
+		dataTrainedIndex += sequenceLength; // shift the training offset
+
+		totalSteps++;
 	}
 
 	// Reset the data pointer to the beginning.
@@ -1,7 +1,9 @@
 package io.github.garstka.rnn.net;
 
 import io.github.garstka.rnn.math.Matrix;
+import io.github.garstka.rnn.math.Precision;
 import io.github.garstka.rnn.math.Random;
+import io.github.garstka.rnn.net.interfaces.GradientTrainable;
 
 // Single layer RNN.
 public class SingleLayerRNN extends BasicRNN
@@ -39,12 +41,49 @@ public class SingleLayerRNN extends BasicRNN
 		initialized = false;
 	}
 
+	// Sets the rank of Whh, stored as a product of two factors, or 0 for
+	// a full matrix. Network must be initialized again.
+	public void setRecurrentRank(int rank)
+	{
+		layer.setRecurrentRank(rank);
+		initialized = false;
+	}
+
+	// Sets the rank of Why, like setRecurrentRank. Network must be
+	// initialized again.
+	public void setOutputRank(int rank)
+	{
+		layer.setOutputRank(rank);
+		initialized = false;
+	}
+
 	// Sets the learning rate.
 	public void setLearningRate(double learningRate)
 	{
 		layer.setLearningRate(learningRate);
 	}
 
+	// Sets the weight storage precision. Converts the weights, if the net
+	// is initialized.
+	public void setPrecision(Precision precision)
+	{
+		layer.setPrecision(precision);
+	}
+
+	// Sets the optimizer. Resets the optimizer state, if the net is
+	// initialized.
+	public void setOptimizer(Optimizer optimizer)
+	{
+		layer.setOptimizer(optimizer);
+	}
+
+	// Sets whether the forward passes use sparse copies of the weights (see
+	// RNNLayer.setSparseInference).
+	public void setSparseInference(boolean sparseInference)
+	{
+		layer.setSparseInference(sparseInference);
+	}
+
 	/*** Initialize ***/
 
 	// Initializes the net for this vocabulary size.
@@ -64,6 +103,41 @@ public class SingleLayerRNN extends BasicRNN
 		initialized = true;
 	}
 
+	// Returns a replica of the net, for training from another thread. See
+	// RNNLayer.replicate.
+	public SingleLayerRNN replicate()
+	{
+		if (!initialized)
+			throw new IllegalStateException("Network is uninitialized.");
+
+		SingleLayerRNN replica = new SingleLayerRNN();
+		replica.layer = layer.replicate();
+		replica.initialized = true;
+		return replica;
+	}
+
+	/*** Prune ***/
+
+	// Prunes the weights (see RNNLayer.prune).
+	public void prune(double sparsity)
+	{
+		if (!initialized)
+			throw new IllegalStateException("Network is uninitialized.");
+
+		layer.prune(sparsity);
+	}
+
+	/*** Export ***/
+
+	// Returns an int8 copy of the layer (see RNNLayer.quantize).
+	QuantizedRNNLayer[] quantizeLayers()
+	{
+		if (!initialized)
+			throw new IllegalStateException("Network is uninitialized.");
+
+		return new QuantizedRNNLayer[] {layer.quantize()};
+	}
+
 	/*** Train ***/
 
 	/*
@@ -75,6 +149,30 @@ public class SingleLayerRNN extends BasicRNN
 	    Returns the cross-entropy loss.
 	*/
 	public double forwardBackward(int[] ix, int[] iy)
+	{
+		double loss = computeGradients(ix, iy);
+		layer.applyGradients(1.0);
+		return loss;
+	}
+
+	/*
+	    Performs a forward-backward pass for a batch of sequences, with
+	    ix[b], iy[b] being sequence b. The gradients are averaged.
+
+	    ix.length and iy.length must match, as must the lengths of all
+	    sequences. All indices must be less than the vocabulary size.
+
+	    Returns the mean cross-entropy loss per sequence.
+	*/
+	public double forwardBackward(int[][] ix, int[][] iy)
+	{
+		double loss = computeGradients(ix, iy);
+		layer.applyGradients(1.0);
+		return loss;
+	}
+
+	// Like forwardBackward, without updating the weights.
+	public double computeGradients(int[] ix, int[] iy)
 	{
 		if (!initialized)
 			throw new IllegalStateException("Network is uninitialized.");
@@ -90,13 +188,61 @@ public class SingleLayerRNN extends BasicRNN
 			throw new IllegalArgumentException(
 			    "Can't perform a pass on an empty sequence.");
 
-		layer.forward(layer.ixTox(ix));
+		layer.forward(ix);
 		double loss = layer.getLoss(iy);
-		layer.backward(layer.getdy(iy));
+		layer.computeGradients(layer.getdy());
+
+		return loss;
+	}
+
+	// Like forwardBackward for a batch, without updating the weights.
+	public double computeGradients(int[][] ix, int[][] iy)
+	{
+		if (!initialized)
+			throw new IllegalStateException("Network is uninitialized.");
+
+		if (ix == null || iy == null)
+			throw new NullPointerException("Arrays can't be null.");
+
+		if (ix.length != iy.length)
+			throw new IllegalArgumentException(
+			    "Inputs and outputs must match.");
+
+		int[] x = interleave(ix, 0);
+		int[] y = interleave(iy, 1);
+
+		if (x.length != y.length)
+			throw new IllegalArgumentException(
+			    "Inputs and outputs must match.");
+
+		layer.forward(x, ix.length);
+		double loss = layer.getLoss(y);
+		layer.computeGradients(layer.getdy());
 
 		return loss;
 	}
 
+	// Adds the gradients last computed by other, a replica of this net.
+	public void addGradients(GradientTrainable other)
+	{
+		if (!(other instanceof SingleLayerRNN))
+			throw new IllegalArgumentException("Expected a replica.");
+
+		if (!initialized)
+			throw new IllegalStateException("Network is uninitialized.");
+
+		layer.addGradients(((SingleLayerRNN)other).layer);
+	}
+
+	// Updates the weights with the gradients last computed, times scale.
+	public void applyGradients(double scale)
+	{
+		if (!initialized)
+			throw new IllegalStateException("Network is uninitialized.");
+
+		layer.applyGradients(scale);
+	}
+
 	/*** Sample ***/
 
 	// Samples n indices, sequence seed, advance the state.
@@ -124,17 +270,15 @@ public class SingleLayerRNN extends BasicRNN
 
 		int[] sampled = new int[n];
 
-		layer.forward(layer.ixTox(seed));
+		layer.forward(seed);
 		sampled[0] = Random.randomChoice(
 		    layer.getProbabilities(temp)); // first choice given seed
 
 
-		Matrix seedVec = layer.ixTox(sampled[0]);
 		for (int t = 1; t < n; t++)
 		{
-			layer.forward(seedVec);
+			layer.forward(sampled[t - 1]);
 			sampled[t] = Random.randomChoice(layer.getProbabilities(temp));
-			seedVec = layer.ixTox(sampled[t]);
 		}
 
 		if (!advance)
@@ -0,0 +1,45 @@
+package io.github.garstka.rnn.net;
+
+import io.github.garstka.rnn.net.exceptions.NoMoreTrainingDataException;
+import io.github.garstka.rnn.net.interfaces.TrainingSet;
+
+// A contiguous part of a training set, for one of several training threads.
+class TrainingSetSlice implements TrainingSet
+{
+	private final TrainingSet data;
+	private final int offset; // Start in data.
+	private final int length;
+
+	TrainingSetSlice(TrainingSet data, int offset, int length)
+	{
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public void extract(int lowerBound, int[] ix, int[] iy)
+	    throws NoMoreTrainingDataException
+	{
+		if (ix == null || iy == null)
+			throw new NullPointerException("Output arrays can't be null.");
+
+		if (lowerBound < 0)
+			throw new IllegalArgumentException("Illegal lower bound.");
+
+		// fetch one more symbol than the length, within the slice
+		if (lowerBound + iy.length + 1 >= length)
+			throw new NoMoreTrainingDataException();
+
+		data.extract(offset + lowerBound, ix, iy);
+	}
+
+	public int size()
+	{
+		return length;
+	}
+
+	public int vocabularySize()
+	{
+		return data.vocabularySize();
+	}
+}
@@ -0,0 +1,38 @@
+package io.github.garstka.rnn.net.interfaces;
+
+// Trainable neural network that can be trained synchronously from several
+// threads: each replica computes the gradients for its own data, they're
+// summed, and a single update is applied to the shared weights.
+public interface GradientTrainable extends Replicable {
+
+	/*
+		Like forwardBackward, but only computes the gradients, without
+		updating the weights.
+
+		Returns the cross-entropy loss.
+	*/
+	double computeGradients(int[] ix, int[] iy);
+
+	/*
+		Like forwardBackward for a batch, but only computes the gradients,
+		without updating the weights.
+
+		Returns the mean cross-entropy loss per sequence.
+	*/
+	double computeGradients(int[][] ix, int[][] iy);
+
+	/*
+		Adds the gradients last computed by other, a replica of this net,
+		to the ones of this net.
+	*/
+	void addGradients(GradientTrainable other);
+
+	/*
+		Updates the weights with the gradients last computed (and added to),
+		multiplied by scale.
+	*/
+	void applyGradients(double scale);
+
+	@Override
+	GradientTrainable replicate();
+}
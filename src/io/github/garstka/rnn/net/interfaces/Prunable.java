@@ -0,0 +1,24 @@
+package io.github.garstka.rnn.net.interfaces;
+
+// Neural network whose weights can be pruned, and then used as sparse
+// matrices.
+public interface Prunable {
+
+	/*
+		Zeroes the smallest weights by magnitude, this fraction of each
+		weight matrix (not the biases, nor the factors of a low-rank
+		matrix). They stay zero through any further training, which can
+		fine-tune the rest.
+
+		Requires 0 <= sparsity < 1, and the net to be initialized.
+	*/
+	void prune(double sparsity);
+
+	/*
+		Sets whether the forward passes use sparse copies of the weight
+		matrices, which only multiply their non-zero elements. Pays off for
+		sampling from a pruned net. The copies are made again after the
+		weights change.
+	*/
+	void setSparseInference(boolean sparseInference);
+}
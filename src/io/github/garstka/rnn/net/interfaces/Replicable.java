@@ -0,0 +1,14 @@
+package io.github.garstka.rnn.net.interfaces;
+
+// Trainable neural network that can be trained from several threads.
+public interface Replicable extends Trainable {
+
+	/*
+		Returns a replica of the net for another training thread. It shares
+		the weights with this net, and updates them without locking, but has
+		its own hidden state (starting as a copy of this one) and buffers.
+
+		The net must be initialized.
+	*/
+	Trainable replicate();
+}
@@ -12,4 +12,16 @@ public interface Trainable {
 		Returns the cross-entropy loss.
 	*/
 	double forwardBackward(int[] ix, int[] iy);
+
+	/*
+		Performs a forward-backward pass for a batch of sequences, with
+		ix[b], iy[b] being sequence b. The gradients are averaged over
+		the batch.
+
+		ix.length and iy.length must match, as must the lengths of all
+		sequences. All indices must be less than the vocabulary size.
+
+		Returns the mean cross-entropy loss per sequence.
+	*/
+	double forwardBackward(int[][] ix, int[][] iy);
 }
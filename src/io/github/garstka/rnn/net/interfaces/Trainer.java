@@ -0,0 +1,22 @@
+package io.github.garstka.rnn.net.interfaces;
+
+import io.github.garstka.rnn.net.exceptions.NoMoreTrainingDataException;
+
+// Trains a neural network on a training set.
+public interface Trainer {
+
+	// Trains the net for a few steps. Requires steps >= 0.
+	void train(int steps) throws NoMoreTrainingDataException;
+
+	// Resets the data pointers to the beginning.
+	void loopAround();
+
+	// Returns the step count.
+	int getTotalSteps();
+
+	// Returns the smooth cross-entropy loss.
+	double getSmoothLoss();
+
+	// Print debug messages.
+	void printDebug(boolean on);
+}